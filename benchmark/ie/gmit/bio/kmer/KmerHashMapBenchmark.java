@@ -0,0 +1,47 @@
+package ie.gmit.bio.kmer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * KmerHashMapBenchmark
+ * --------------------
+ * Times increment() and get() on a KmerHashMap against a HashMap<Long, Long> keyed by
+ * the masked k-mer, which is the boxed layout that the primitive arrays replace, and
+ * prints the slot storage per entry. Random k-mers under the Murphy15 seeds, so the keys
+ * are spread as they are for the AMP families. Run with the k-mer count as the argument.
+ */
+public class KmerHashMapBenchmark {
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		long[] seeds = KmerUtils.getEncodedSeeds(AminoAcidAlphabet.Murphy15);
+		long mask = seeds.length > 0 ? seeds[0] : -1L;
+		Random random = new Random(7);
+		long[] kmers = new long[count];
+		for (int i = 0; i < count; i++) kmers[i] = random.nextLong();
+
+		for (int round = 0; round < ROUNDS; round++) { //The first rounds are the warm up
+			long start = System.nanoTime();
+			KmerHashMap map = new KmerHashMap(seeds);
+			for (long kmer : kmers) map.increment(kmer);
+			long built = System.nanoTime();
+			long total = 0;
+			for (long kmer : kmers) total += map.get(kmer);
+			long read = System.nanoTime();
+
+			Map<Long, Long> boxed = new HashMap<>();
+			for (long kmer : kmers) boxed.merge(kmer & mask, 1L, Long::sum);
+			long boxedBuilt = System.nanoTime();
+			for (long kmer : kmers) total += boxed.get(kmer & mask);
+			long boxedRead = System.nanoTime();
+
+			System.out.printf("Round %d: increment %.1f ns (boxed %.1f), get %.1f ns (boxed %.1f), %.1f bytes/entry of slots (%d)%n",
+					round, (built - start) / (double) count, (boxedBuilt - read) / (double) count,
+					(read - built) / (double) count, (boxedRead - boxedBuilt) / (double) count,
+					map.getCapacity() * 16d / map.size(), total);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package ie.gmit.bio;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/*
+ * A CharSequence view over a run of ASCII bytes. The bytes are not copied, so the view
+ * follows any change to the underlying array and can be re-pointed with wrap() instead
+ * of allocating a new view.
+ */
+public class AsciiSequence implements CharSequence {
+	private byte[] bytes;
+	private int offset;
+	private int length;
+	
+	public AsciiSequence() {
+		this(new byte[0], 0, 0);
+	}
+	
+	public AsciiSequence(byte[] bytes, int offset, int length) {
+		super();
+		wrap(bytes, offset, length);
+	}
+	
+	public AsciiSequence wrap(byte[] bytes, int offset, int length) {
+		Objects.checkFromIndexSize(offset, length, bytes.length);
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+	
+	public byte[] getBytes() {
+		return bytes;
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		Objects.checkIndex(index, length);
+		return (char) (bytes[offset + index] & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		Objects.checkFromToIndex(start, end, length);
+		return new AsciiSequence(bytes, offset + start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+	}
+}
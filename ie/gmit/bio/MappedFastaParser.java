@@ -0,0 +1,160 @@
+package ie.gmit.bio;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * MappedFastaParser
+ * --------------------
+ * A FASTA parser that maps the file with FileChannel.map and scans the bytes directly,
+ * instead of creating a String per line. Lines can end with \n, \r\n or a bare \r. For
+ * each record, process() can read the file offsets of the header and of the residue
+ * lines, and the residues themselves (upper case, without line breaks, spaces or '*')
+ * from a buffer that is reused from one record to the next. Nothing is allocated per
+ * line or per record, so the views are only valid until process() returns. Files over
+ * the 2GB limit of a single mapping are mapped one window at a time.
+ */
+public abstract class MappedFastaParser {
+	private static final long WINDOW_SIZE = 1L << 30;
+	private static final int MAX_BUFFER = Integer.MAX_VALUE - 8; //The largest array that the JVMs will allocate
+	private SequenceType type = null;
+	private byte[] header = new byte[256];
+	private int headerLength;
+	private long headerOffset;
+	private byte[] residues = new byte[4096];
+	private int residueCount;
+	private long recordOffset;
+	private long recordLength;
+	private AsciiSequence headerView = new AsciiSequence();
+	private AsciiSequence residueView = new AsciiSequence();
+
+	public MappedFastaParser(SequenceType type) {
+		super();
+		this.type = type;
+	}
+
+	public void parse(String file) throws Exception{
+		try (FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+			long size = channel.size();
+			boolean lineStart = true;
+			boolean inHeader = false;
+			boolean inRecord = false;
+
+			for (long base = 0; base < size; base += WINDOW_SIZE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW_SIZE, size - base));
+				int limit = buffer.limit();
+
+				for (int i = 0; i < limit; i++) {
+					byte b = buffer.get(i);
+
+					if (b == '\n' || b == '\r') { //Covers \n, \r\n and \r
+						inHeader = false;
+						lineStart = true;
+						continue;
+					}
+
+					if (lineStart && b == '>') {
+						if (inRecord) dispatch(base + i);
+						headerOffset = base + i + 1;
+						headerLength = 0;
+						residueCount = 0;
+						recordOffset = -1;
+						inHeader = true;
+						inRecord = true;
+						lineStart = false;
+						continue;
+					}
+					lineStart = false;
+
+					if (inHeader) {
+						appendHeader(b);
+					}else if (inRecord) {
+						if (recordOffset < 0) recordOffset = base + i;
+						appendResidue(b);
+					}
+				}
+			}
+			if (inRecord) dispatch(size);
+		}
+	}
+
+	private void dispatch(long end) throws Exception {
+		if (recordOffset < 0) recordOffset = end; //A record with no residue lines
+		recordLength = end - recordOffset;
+		headerView.wrap(header, 0, headerLength);
+		residueView.wrap(residues, 0, residueCount);
+		process();
+	}
+
+	private void appendHeader(byte b) throws IOException {
+		if (headerLength == header.length) header = grow(header, "header");
+		header[headerLength++] = b;
+	}
+
+	private void appendResidue(byte b) throws IOException {
+		if (b == '*' || b == ' ' || b == '\t') return;
+		if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+
+		if (residueCount == residues.length) residues = grow(residues, "sequence");
+		residues[residueCount++] = b;
+	}
+
+	//Doubles the buffer in long arithmetic, so that it stops at the array limit instead of overflowing
+	private byte[] grow(byte[] buffer, String part) throws IOException {
+		if (buffer.length >= MAX_BUFFER) {
+			throw new IOException("FASTA " + part + " at offset " + headerOffset + " is longer than " + MAX_BUFFER + " bytes.");
+		}
+		return Arrays.copyOf(buffer, (int) Math.min(MAX_BUFFER, (long) buffer.length * 2));
+	}
+
+	public SequenceType getType() {
+		return type;
+	}
+
+	public CharSequence getHeader() {
+		return headerView;
+	}
+
+	public long getHeaderOffset() {
+		return headerOffset;
+	}
+
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	//The span of the residue lines in the file, including line breaks
+	public long getRecordOffset() {
+		return recordOffset;
+	}
+
+	public long getRecordLength() {
+		return recordLength;
+	}
+
+	//Only the first getResidueCount() bytes are valid
+	public byte[] getResidues() {
+		return residues;
+	}
+
+	public int getResidueCount() {
+		return residueCount;
+	}
+
+	public CharSequence getSequence() {
+		return residueView;
+	}
+
+	//Copies the current record into a new Sequence, for code that needs to keep it
+	public Sequence getFASTASequence() {
+		Sequence sequence = new Sequence(headerView.toString(), type);
+		sequence.append(residueView);
+		return sequence;
+	}
+
+	public abstract void process() throws Exception;
+}
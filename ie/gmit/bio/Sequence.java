@@ -2,11 +2,21 @@ package ie.gmit.bio;
 
 import java.util.*;
 
+/*
+ * The residues of a sequence are held as ASCII bytes in a growable byte[], and
+ * getSequence() returns a view over them rather than a copy. A nucleotide sequence made
+ * up only of A, C, G and T can also be packed into 2 bits per base with pack().
+ */
 public class Sequence {
 	private static final int FASTA_LINE_WIDTH = 70;
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
 	private CharSequence name;
 	private SequenceType type = SequenceType.NUCLEOTIDE;
-	private List<Character> letters = new ArrayList<>();
+	private byte[] letters = new byte[64];
+	private long[] packed; //Non-null when the sequence is packed at 2 bits per base
+	private int length;
+	private AsciiSequence view = new AsciiSequence(letters, 0, 0);
+	private CharSequence packedView;
 	
 	public Sequence() {
 		super();
@@ -39,21 +49,97 @@ public class Sequence {
 	}
 
 	public void append(CharSequence subsequence) {
+		if (packed != null) unpack();
+		ensureCapacity(length + subsequence.length());
 		for (int i = 0; i < subsequence.length(); i++) {
-			if (subsequence.charAt(i) != '*') append(subsequence.charAt(i));
+			if (subsequence.charAt(i) != '*') letters[length++] = (byte) subsequence.charAt(i);
 		}
+		view.wrap(letters, 0, length);
 	}
 	
 	public void append(char element) {
-		letters.add(element);
+		if (packed != null) unpack();
+		ensureCapacity(length + 1);
+		letters[length++] = (byte) element;
+		view.wrap(letters, 0, length);
 	}
 	
+	private void ensureCapacity(int capacity) {
+		if (capacity > letters.length) letters = Arrays.copyOf(letters, Math.max(capacity, letters.length << 1));
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	public char charAt(int index) {
+		return getSequence().charAt(index);
+	}
+	
+	//A view of the residues. It is not a copy, so it changes if the sequence is appended to
 	public CharSequence getSequence() {
-		StringBuilder builder = new StringBuilder();
-		for (int i = 0; i < letters.size(); i++) {
-			builder.append(letters.get(i));
+		return packed != null ? packedView : view;
+	}
+	
+	public boolean isPacked() {
+		return packed != null;
+	}
+	
+	//Packs a nucleotide sequence at 2 bits per base. Returns false if it is not all A, C, G and T
+	public boolean pack() {
+		if (packed != null) return true;
+		if (type != SequenceType.NUCLEOTIDE) return false;
+		
+		long[] words = new long[(length + 31) >>> 5];
+		for (int i = 0; i < length; i++) {
+			long base = switch (letters[i]) {
+				case 'A' -> 0;
+				case 'C' -> 1;
+				case 'G' -> 2;
+				case 'T' -> 3;
+				default -> -1;
+			};
+			if (base < 0) return false;
+			words[i >>> 5] |= base << ((i & 31) << 1);
+		}
+		
+		packed = words;
+		letters = null;
+		view = null;
+		packedView = new PackedView();
+		return true;
+	}
+	
+	private void unpack() {
+		byte[] bytes = new byte[Math.max(64, length << 1)];
+		for (int i = 0; i < length; i++) bytes[i] = (byte) packedView.charAt(i);
+		letters = bytes;
+		view = new AsciiSequence(letters, 0, length);
+		packed = null;
+		packedView = null;
+	}
+	
+	private class PackedView implements CharSequence {
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			Objects.checkIndex(index, length);
+			return BASES[(int) (packed[index >>> 5] >>> ((index & 31) << 1)) & 3];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder(this).toString();
 		}
-		return builder.toString();
 	}
 	
 	public CharSequence toString(ReadingFrame frame) {
@@ -62,7 +148,7 @@ public class Sequence {
 		builder.append(this.name);
 		builder.append(" /ReadingFrame-" + frame.getReadingFrame() + "\n");
 		
-		CharSequence cs = Translator.translate(letters, frame);
+		CharSequence cs = Translator.translate(getSequence(), frame);
 		int counter = 0;
 		for (int i = 0; i < cs.length(); i++) {
 			builder.append(cs.charAt(i));
@@ -78,7 +164,7 @@ public class Sequence {
 	
 	
 	public CharSequence toWordString(ReadingFrame frame, int minlength) {
-		CharSequence cs = Translator.translate(letters, frame);
+		CharSequence cs = Translator.translate(getSequence(), frame);
 		StringBuilder sb = new StringBuilder();
 		
 		StringBuilder builder = new StringBuilder();
@@ -8,6 +8,7 @@ import java.util.stream.Stream;
 public class AminoAcidEncoder {
 	private static AminoAcidEncoder alphabet = new AminoAcidEncoder();
 	private Map<AminoAcidAlphabet, Map<Character, Integer>> table = new TreeMap<>();
+	private AminoAcidTable[] compiled = new AminoAcidTable[AminoAcidAlphabet.values().length]; //Built on first use
 						 
 	private AminoAcidEncoder() {
 		init();
@@ -18,12 +19,23 @@ public class AminoAcidEncoder {
 	}
 	
 	public int encode(char c, AminoAcidAlphabet alphabet) {
-		return table.get(alphabet).getOrDefault(c, -1);
+		return getTable(alphabet).encode(c);
+	}
+	
+	public AminoAcidTable getTable(AminoAcidAlphabet alphabet) {
+		AminoAcidTable t = compiled[alphabet.ordinal()];
+		if (t == null) {
+			if (!table.containsKey(alphabet)) throw new IllegalArgumentException("No encoding for alphabet " + alphabet.name() + ".");
+			t = new AminoAcidTable(alphabet, table.get(alphabet));
+			compiled[alphabet.ordinal()] = t;
+		}
+		return t;
 	}
 	
 	//Test purposes only...
 	public void addEncodedAlphabet(AminoAcidAlphabet alphabet, Map<Character, Integer> encoding) {
 		table.put(alphabet, encoding);
+		compiled[alphabet.ordinal()] = null;
 	}
 	
 	public Map<Character, Integer> getEncodedAlphabet(AminoAcidAlphabet alphabet) {
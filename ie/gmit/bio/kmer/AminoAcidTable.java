@@ -0,0 +1,42 @@
+package ie.gmit.bio.kmer;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/*
+ * A flat lookup table for one AminoAcidAlphabet, indexed by the ASCII code of a residue.
+ * Lower case residues are folded into the same symbols as upper case ones, and anything
+ * outside the alphabet maps to INVALID, so encoding a residue is a single array load.
+ * Obtain one from AminoAcidEncoder.getTable() and reuse it.
+ */
+public class AminoAcidTable {
+	public static final byte INVALID = -1;
+	private final AminoAcidAlphabet alphabet;
+	private final byte[] table = new byte[128];
+	
+	public AminoAcidTable(AminoAcidAlphabet alphabet, Map<Character, Integer> encoding) {
+		super();
+		this.alphabet = alphabet;
+		Arrays.fill(table, INVALID);
+		encoding.forEach((residue, symbol) -> {
+			char c = residue.charValue();
+			if (c < table.length) {
+				table[c] = symbol.byteValue();
+				table[Character.toLowerCase(c)] = symbol.byteValue();
+			}
+		});
+	}
+	
+	public int encode(char residue) {
+		return residue < table.length ? table[residue] : INVALID;
+	}
+	
+	//Indexed by ASCII code. Do not modify.
+	public byte[] getTable() {
+		return table;
+	}
+	
+	public AminoAcidAlphabet getAlphabet() {
+		return alphabet;
+	}
+}
@@ -0,0 +1,5 @@
+package ie.gmit.bio.kmer;
+
+//The results for one record of a FASTA file, identified by its header
+public record ClassifiedSequence(String header, ClassifierResult[] results){
+}
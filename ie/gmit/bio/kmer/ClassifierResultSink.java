@@ -0,0 +1,9 @@
+package ie.gmit.bio.kmer;
+
+import ie.gmit.bio.AntimicrobialPeptide;
+
+//Receives the results of KmerDatabase.classify(KmerQueryContext, ...) in rank order, without a ClassifierResult per family
+@FunctionalInterface
+public interface ClassifierResultSink {
+	void accept(AntimicrobialPeptide amp, double metric);
+}
@@ -0,0 +1,274 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * CompressedKmerMap
+ * --------------------
+ * A read-only KmerMap that holds the sorted keys and frequencies of a FrozenKmerMap in a
+ * compressed section, either on the heap or mapped from a KmerDatabaseFile. The keys are
+ * split into blocks of BLOCK_SIZE. Within a block, each k-mer is written as the varint gap
+ * from the one before it, taken over the bits under the primary seed only, followed by the
+ * remaining bits of the k-mer with the frequency packed into the two lowest bits, in as
+ * few whole bytes as that takes for the seed. A frequency over three is escaped with a
+ * zero there and written as a varint of its own. The section starts with an index of the first key of each block and where it starts,
+ * so a lookup decodes a single block, and join() skips the blocks that a sorted query
+ * doesn't touch. Section layout (little endian):
+ *
+ *   0  k-mer count    4  section length    8  block count    12 block size
+ *   16 first key of each block, as longs, then the offset of each block, as ints
+ *
+ * followed by the blocks, padded to 8 bytes. If the map is serialised, it is written as a
+ * FrozenKmerMap copy.
+ */
+public class CompressedKmerMap implements KmerMap, Serializable{
+	private static final long serialVersionUID = 777L;
+	private static final int BLOCK_SIZE = 64;
+	private static final int SECTION_HEADER_SIZE = 16;
+	private static final int MAX_FREQUENCY = 3; //That fits in the two packed bits
+	private long mask;
+	private long top; //The projected sign bit of key & mask, flipped so the projections sort as the masked keys do
+	private int width; //Of the remaining bits and frequency, in bytes
+	private transient ByteBuffer section;
+	private int size;
+	private int blocks;
+
+	public CompressedKmerMap(long mask, KmerMap map) {
+		this(mask, encode(map, mask));
+	}
+
+	CompressedKmerMap(long mask, ByteBuffer section) {
+		super();
+		this.mask = mask;
+		this.top = getTop(mask);
+		this.width = getWidth(mask);
+		this.section = section.order(ByteOrder.LITTLE_ENDIAN);
+		this.size = section.getInt(0);
+		this.blocks = section.getInt(8);
+	}
+
+	//The k-mers of the map sorted by their value under the mask and encoded as above
+	static ByteBuffer encode(KmerMap map, long mask) {
+		long top = getTop(mask);
+		int width = getWidth(mask);
+		long[] keys = map.keys();
+		long[] sorted = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			sorted[i] = KmerUtils.project(keys[i], mask) ^ top;
+		}
+		Arrays.sort(sorted);
+		long[] residuals = new long[keys.length];
+		long[] frequencies = new long[keys.length];
+		for (long key : keys) {
+			int index = Arrays.binarySearch(sorted, KmerUtils.project(key, mask) ^ top); //The keys are distinct under the mask
+			residuals[index] = KmerUtils.project(key, ~mask);
+			frequencies[index] = map.get(key);
+		}
+
+		int blocks = (keys.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int start = SECTION_HEADER_SIZE + blocks * 12;
+		ByteBuffer section = ByteBuffer.allocate(start + keys.length * 28 + 8).order(ByteOrder.LITTLE_ENDIAN); //At most 2 varints and 8 bytes each
+		section.position(start);
+		for (int i = 0; i < keys.length; i++) {
+			if (i % BLOCK_SIZE == 0) {
+				section.putLong(SECTION_HEADER_SIZE + i / BLOCK_SIZE * 8, sorted[i]);
+				section.putInt(SECTION_HEADER_SIZE + blocks * 8 + i / BLOCK_SIZE * 4, section.position());
+			}
+			putVarLong(section, i % BLOCK_SIZE == 0 ? 0 : sorted[i] - sorted[i - 1]);
+			boolean small = frequencies[i] > 0 && frequencies[i] <= MAX_FREQUENCY;
+			long token = residuals[i] << 2 | (small ? frequencies[i] : 0);
+			for (int b = 0; b < width; b++, token >>>= 8) section.put((byte) token);
+			if (!small) putVarLong(section, frequencies[i]);
+		}
+
+		int length = (section.position() + 7) & ~7;
+		section.putInt(0, keys.length);
+		section.putInt(4, length);
+		section.putInt(8, blocks);
+		section.putInt(12, BLOCK_SIZE);
+		return ByteBuffer.wrap(Arrays.copyOf(section.array(), length)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static long getTop(long mask) {
+		return mask < 0 && mask != -1L ? 1L << (Long.bitCount(mask) - 1) : 0;
+	}
+
+	private static int getWidth(long mask) {
+		return Math.min((Long.bitCount(~mask) + 2 + 7) / 8, 8);
+	}
+
+	@Override
+	public long get(long key) {
+		long target = KmerUtils.project(key, mask) ^ top;
+		int block = blockOf(target, 0);
+		if (block < 0) return 0;
+
+		Cursor cursor = new Cursor(block);
+		while (cursor.next()) {
+			if (cursor.key == target) return cursor.frequency;
+			if (cursor.key > target) return 0;
+		}
+		return 0;
+	}
+
+	//The last block from the given one whose first key is not past the target, or from - 1
+	private int blockOf(long target, int from) {
+		int low = from;
+		int high = blocks - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (getFirstKey(middle) <= target) {
+				low = middle + 1;
+			}else {
+				high = middle - 1;
+			}
+		}
+		return high;
+	}
+
+	//Projects the k-mers under the primary seed and sorts them, ready for join()
+	public long[] prepareQuery(long[] kmers) {
+		long[] query = new long[kmers.length];
+		for (int i = 0; i < kmers.length; i++) query[i] = KmerUtils.project(kmers[i], mask) ^ top;
+		Arrays.sort(query);
+		return query;
+	}
+
+	/*
+	 * As FrozenKmerMap.join(), but a query k-mer that is past the current block jumps
+	 * straight to the block that might hold it, so only the blocks that the query touches
+	 * are decoded.
+	 */
+	public int join(long[] query, int length, long[] frequencies) {
+		int hits = 0;
+		int block = -1;
+		Cursor cursor = null;
+		boolean more = false;
+		for (int i = 0; i < length; i++) {
+			if (block + 1 < blocks && getFirstKey(block + 1) <= query[i]) {
+				block = blockOf(query[i], block + 1);
+				cursor = new Cursor(block);
+				more = cursor.next();
+			}
+			while (more && cursor.key < query[i]) more = cursor.next();
+
+			if (more && cursor.key == query[i]) {
+				frequencies[i] = cursor.frequency;
+				hits++;
+			}else {
+				frequencies[i] = 0;
+			}
+		}
+		return hits;
+	}
+
+	@Override
+	public void put(long key, long frequency) {
+		throw new UnsupportedOperationException("A compressed k-mer map cannot be changed.");
+	}
+
+	@Override
+	public long increment(long key) {
+		throw new UnsupportedOperationException("A compressed k-mer map cannot be changed.");
+	}
+
+	//In ascending order of key & mask
+	@Override
+	public long[] keys() {
+		long[] keys = new long[size];
+		decode(keys, null);
+		return keys;
+	}
+
+	public long[] getFrequencies() {
+		long[] frequencies = new long[size];
+		decode(null, frequencies);
+		return frequencies;
+	}
+
+	private void decode(long[] keys, long[] frequencies) {
+		for (int block = 0, i = 0; block < blocks; block++) {
+			Cursor cursor = new Cursor(block);
+			while (cursor.next()) {
+				if (keys != null) keys[i] = KmerUtils.deposit(cursor.key ^ top, mask) | KmerUtils.deposit(cursor.residual, ~mask);
+				if (frequencies != null) frequencies[i] = cursor.frequency;
+				i++;
+			}
+		}
+	}
+
+	private long getFirstKey(int block) {
+		return section.getLong(SECTION_HEADER_SIZE + block * 8);
+	}
+
+	private int getBlockOffset(int block) {
+		return section.getInt(SECTION_HEADER_SIZE + blocks * 8 + block * 4);
+	}
+
+	private static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	//Decodes the entries of a block in order. One per lookup, so the map can be shared between threads.
+	private class Cursor {
+		private int position;
+		private int remaining;
+		private long key;
+		private long residual;
+		private long frequency;
+
+		private Cursor(int block) {
+			position = getBlockOffset(block);
+			remaining = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+			key = getFirstKey(block);
+		}
+
+		private boolean next() {
+			if (remaining == 0) return false;
+			remaining--;
+			key += getVarLong();
+			long token = 0;
+			for (int b = 0; b < width; b++) token |= (section.get(position++) & 0xFFL) << (b * 8);
+			residual = token >>> 2;
+			frequency = token & 3;
+			if (frequency == 0) frequency = getVarLong();
+			return true;
+		}
+
+		private long getVarLong() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = section.get(position++);
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+	}
+
+	public long getMask() {
+		return mask;
+	}
+
+	public int getSizeInBytes() {
+		return section.getInt(4);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private Object writeReplace() {
+		return new FrozenKmerMap(mask, keys(), getFrequencies());
+	}
+}
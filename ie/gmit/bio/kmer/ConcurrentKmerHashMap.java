@@ -0,0 +1,150 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * ConcurrentKmerHashMap
+ * --------------------
+ * A thread-safe KmerMap for building a family map from several producer threads and for
+ * sharing it between classification threads. The map is split into a power-of-two number
+ * of segments, chosen by the high bits of the k-mer hash, and each segment is a KmerHashMap
+ * guarded by its own StampedLock. Writers (put/increment) lock only their segment, and a
+ * resize only blocks the segment that is growing. Readers use an optimistic read and only
+ * take the read lock if a writer got in the way, so a map that is no longer being written
+ * is read without any locking. Pre-size the map when the number of k-mers is known. If
+ * the map is serialised, it is written as a KmerHashMap copy, one segment at a time.
+ */
+public class ConcurrentKmerHashMap implements KmerMap, Serializable{
+	private static final long serialVersionUID = 777L;
+	private static final int DEFAULT_SEGMENTS = 64;
+	private transient KmerHashMap[] segments;
+	private transient StampedLock[] locks;
+	private long mask;
+	private int shift;
+
+	public ConcurrentKmerHashMap(long[] seeds) {
+		this(16 * DEFAULT_SEGMENTS, DEFAULT_SEGMENTS, seeds);
+	}
+
+	public ConcurrentKmerHashMap(int capacity, long[] seeds) {
+		this(capacity, DEFAULT_SEGMENTS, seeds);
+	}
+
+	public ConcurrentKmerHashMap(int capacity, int concurrency, long[] seeds) {
+		super();
+		int count = Math.max(1, Integer.highestOneBit(Math.max(concurrency, 1) - 1) << 1);
+		this.mask = seeds.length > 0 ? seeds[0] : -1L;
+		this.shift = 32 - Integer.numberOfTrailingZeros(count);
+		segments = new KmerHashMap[count];
+		locks = new StampedLock[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new KmerHashMap(Math.max(capacity / count, 2), seeds, 0.75f);
+			locks[i] = new StampedLock();
+		}
+	}
+
+	private int segmentOf(long key) {
+		return shift == 32 ? 0 : KmerUtils.hash(key & mask) >>> shift;
+	}
+
+	@Override
+	public long get(long key) {
+		int segment = segmentOf(key);
+		StampedLock lock = locks[segment];
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				long frequency = segments[segment].get(key);
+				if (lock.validate(stamp)) return frequency;
+			}catch (RuntimeException e) {
+				//A resize was in progress and the arrays were inconsistent. Retry under the lock.
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return segments[segment].get(key);
+		}finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void put(long key, long frequency) {
+		int segment = segmentOf(key);
+		long stamp = locks[segment].writeLock();
+		try {
+			segments[segment].put(key, frequency);
+		}finally {
+			locks[segment].unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public long increment(long key) {
+		int segment = segmentOf(key);
+		long stamp = locks[segment].writeLock();
+		try {
+			return segments[segment].increment(key);
+		}finally {
+			locks[segment].unlockWrite(stamp);
+		}
+	}
+
+	//A snapshot of each segment in turn. Keys added during the call may or may not be included.
+	@Override
+	public long[] keys() {
+		long[][] parts = new long[segments.length][];
+		int total = 0;
+		for (int i = 0; i < segments.length; i++) {
+			long stamp = locks[i].readLock();
+			try {
+				parts[i] = segments[i].keys();
+			}finally {
+				locks[i].unlockRead(stamp);
+			}
+			total += parts[i].length;
+		}
+
+		long[] keys = new long[total];
+		int index = 0;
+		for (long[] part : parts) {
+			System.arraycopy(part, 0, keys, index, part.length);
+			index += part.length;
+		}
+		return keys;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < segments.length; i++) {
+			long stamp = locks[i].readLock();
+			try {
+				size += segments[i].size();
+			}finally {
+				locks[i].unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	private Object writeReplace() {
+		KmerHashMap map = new KmerHashMap(size(), new long[] {mask}, 0.75f);
+		for (int i = 0; i < segments.length; i++) {
+			long stamp = locks[i].readLock();
+			try {
+				for (long key : segments[i].keys()) map.put(key, segments[i].get(key));
+			}finally {
+				locks[i].unlockRead(stamp);
+			}
+		}
+		return map;
+	}
+}
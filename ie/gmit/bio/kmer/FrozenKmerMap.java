@@ -0,0 +1,101 @@
+package ie.gmit.bio.kmer;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/*
+ * FrozenKmerMap
+ * --------------------
+ * An immutable, read-optimised KmerMap made by KmerHashMap.freeze() once a family map has
+ * been built. The keys are held in a long[] sorted by their value under the primary seed,
+ * with a parallel long[] of frequencies, so there are no empty slots and lookups are the
+ * interpolation search of KmerSearch. A query that has been sorted with prepareQuery() can
+ * instead be merge-joined against the keys in a single sequential pass with join().
+ */
+public class FrozenKmerMap implements KmerMap, Serializable{
+	private static final long serialVersionUID = 777L;
+	private long mask;
+	private long[] keys; //Sorted by key & mask
+	private long[] frequencies;
+	private transient LongBuffer sorted; //The keys, for KmerSearch. Not serialisable, so it is made again on reading.
+
+	FrozenKmerMap(long mask, long[] keys, long[] frequencies) {
+		super();
+		this.mask = mask;
+		this.keys = keys;
+		this.frequencies = frequencies;
+		this.sorted = LongBuffer.wrap(keys);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		sorted = LongBuffer.wrap(keys);
+	}
+
+	@Override
+	public long get(long key) {
+		int index = KmerSearch.indexOf(sorted, mask, key & mask);
+		return index < 0 ? 0 : frequencies[index];
+	}
+
+	//Masks the k-mers under the primary seed and sorts them, ready for join()
+	public long[] prepareQuery(long[] kmers) {
+		long[] query = new long[kmers.length];
+		for (int i = 0; i < kmers.length; i++) query[i] = kmers[i] & mask;
+		Arrays.sort(query);
+		return query;
+	}
+
+	/*
+	 * Merge-joins a query prepared by prepareQuery() with the keys in one sequential pass.
+	 * The frequency of each query k-mer (or zero) is written to the same index of the
+	 * frequencies array, and the number of query k-mers that were found is returned.
+	 */
+	public int join(long[] query, int length, long[] frequencies) {
+		int hits = 0;
+		int index = 0;
+		for (int i = 0; i < length; i++) {
+			while (index < keys.length && (keys[index] & mask) < query[i]) index++;
+
+			if (index < keys.length && (keys[index] & mask) == query[i]) {
+				frequencies[i] = this.frequencies[index];
+				hits++;
+			}else {
+				frequencies[i] = 0;
+			}
+		}
+		return hits;
+	}
+
+	@Override
+	public void put(long key, long frequency) {
+		throw new UnsupportedOperationException("A frozen k-mer map cannot be changed.");
+	}
+
+	@Override
+	public long increment(long key) {
+		throw new UnsupportedOperationException("A frozen k-mer map cannot be changed.");
+	}
+
+	//In ascending order of key & mask
+	@Override
+	public long[] keys() {
+		return keys.clone();
+	}
+
+	public long[] getFrequencies() {
+		return frequencies.clone();
+	}
+
+	public long getMask() {
+		return mask;
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+}
@@ -0,0 +1,99 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+
+/*
+ * KmerBloomFilter
+ * --------------------
+ * A blocked Bloom filter over the seed projections of the k-mers in a family map. Each
+ * (seed, projection) pair sets K bits in a single 512 bit block, so a lookup touches one
+ * cache line per seed. mightMatch() is false only if no k-mer of the family is equal to
+ * the query under any seed, so a family that it rules out can be skipped without scoring
+ * it. The false positive rate is estimated from the fraction of bits that are set.
+ */
+public class KmerBloomFilter implements Serializable{
+	private static final long serialVersionUID = 777L;
+	private static final int BLOCK_WORDS = 8; //512 bits, one cache line
+	private static final int MAX_BLOCKS = 1 << 27; //The most power of two blocks whose words fit in an array
+	private static final int K = 6;
+	private long[] seeds;
+	private long[] bits;
+	private int blockMask;
+
+	public KmerBloomFilter(long[] seeds, KmerMap map) {
+		this(seeds, map, 10);
+	}
+
+	public KmerBloomFilter(long[] seeds, KmerMap map, int bitsPerEntry) {
+		super();
+		this.seeds = seeds.length > 0 ? seeds : new long[] {-1L}; //Without seeds, k-mers only match exactly, as in KmerHashMap
+		long entries = Math.max((long) map.size() * this.seeds.length, 1);
+		long blocks = Math.max(1, (entries * bitsPerEntry + 511) / 512);
+		int count = (int) Math.max(1, Math.min(MAX_BLOCKS, Long.highestOneBit(blocks - 1) << 1)); //A capped filter only has more false positives
+		bits = new long[count * BLOCK_WORDS];
+		blockMask = count - 1;
+
+		for (long kmer : map.keys()) {
+			for (int s = 0; s < this.seeds.length; s++) {
+				long hash = hash(s, kmer);
+				int block = block(hash);
+				long positions = KmerUtils.mix(hash);
+				for (int i = 0; i < K; i++, positions >>>= 9) {
+					int bit = (int) (positions & 511);
+					bits[block + (bit >>> 6)] |= 1L << bit;
+				}
+			}
+		}
+	}
+
+	//False if no k-mer of the family can match the query k-mer under any seed
+	public boolean mightMatch(long kmer) {
+		for (int s = 0; s < seeds.length; s++) {
+			if (mightMatch(s, kmer)) return true;
+		}
+		return false;
+	}
+
+	public boolean mightMatch(long[] kmers) {
+		return mightMatch(kmers, kmers.length);
+	}
+
+	public boolean mightMatch(long[] kmers, int length) {
+		for (int i = 0; i < length; i++) {
+			if (mightMatch(kmers[i])) return true;
+		}
+		return false;
+	}
+
+	private boolean mightMatch(int seed, long kmer) {
+		long hash = hash(seed, kmer);
+		int block = block(hash);
+		long positions = KmerUtils.mix(hash);
+		for (int i = 0; i < K; i++, positions >>>= 9) {
+			int bit = (int) (positions & 511);
+			if ((bits[block + (bit >>> 6)] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+
+	//The estimated chance that a single (seed, k-mer) lookup is a false positive
+	public double getFalsePositiveRate() {
+		long set = 0;
+		for (long word : bits) {
+			set += Long.bitCount(word);
+		}
+		return Math.pow(set / (double) (bits.length * 64L), K);
+	}
+
+	public int getSizeInBytes() {
+		return bits.length * 8;
+	}
+
+	private long hash(int seed, long kmer) {
+		return KmerUtils.mix(KmerUtils.project(kmer, seeds[seed]) + (seed + 1) * 0x9E3779B97F4A7C15L);
+	}
+
+	private int block(long hash) {
+		return ((int) (hash >>> 32) & blockMask) * BLOCK_WORDS;
+	}
+}
@@ -1,19 +1,40 @@
 package ie.gmit.bio.kmer;
 
-import ie.gmit.bio.AbstractFastaParser;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
 import ie.gmit.bio.AntimicrobialPeptide;
+import ie.gmit.bio.MappedFastaParser;
 import ie.gmit.bio.Sequence;
 import ie.gmit.bio.SequenceType;
 import ie.gmit.bio.kmer.metrics.MajorityCountMetric;
 
+/*
+ * KmerClassifier
+ * --------------------
+ * Classifies protein sequences against a database of AMP families. classifyAll() spreads
+ * a batch over a ForkJoinPool (the common pool unless another is given), whose work
+ * stealing copes with very uneven sequence lengths. Each thread keeps its own
+ * KmerQueryContext and reuses it from one sequence to the next.
+ */
 public class KmerClassifier {
+	private static final int MAX_RETAINED_CAPACITY = 1 << 16; //Larger query maps are not kept for reuse
 	private KmerDatabase db;
 	private AminoAcidAlphabet alphabet;
 	private long[] seeds; 
+	private ForkJoinPool pool;
+	private ThreadLocal<KmerQueryContext> contexts = ThreadLocal.withInitial(this::newQueryContext);
 	
 	public KmerClassifier(AminoAcidAlphabet alphabet) {
+		this(alphabet, ForkJoinPool.commonPool());
+	}
+	
+	public KmerClassifier(AminoAcidAlphabet alphabet, ForkJoinPool pool) {
 		super();
 		this.alphabet = alphabet;
+		this.pool = pool;
 		seeds = KmerUtils.getEncodedSeeds(alphabet);
 		db = new KmerDatabase(seeds, new MajorityCountMetric()); //Configure the database
 	}
@@ -21,14 +42,151 @@ public class KmerClassifier {
 	public ClassifierResult[] classify(Sequence s) throws Exception{
 		if (s.getType() != SequenceType.PROTEIN) throw new Exception("Invalid protein sequence encoding.");
 		
-		KmerHashMap query = new KmerHashMap(seeds);
+		KmerQueryContext context = getQueryContext();
+		context.load(s.getSequence());
+		List<ClassifierResult> results = new ArrayList<>();
+		db.classify(context, (amp, metric) -> results.add(new ClassifierResult(amp, metric)));
+		return results.toArray(new ClassifierResult[results.size()]);
+	}
+	
+	//Allocation free once the context has grown to fit the sequence. The context is the caller's to reuse.
+	public int classify(Sequence s, KmerQueryContext context, ClassifierResultSink sink) throws Exception{
+		if (s.getType() != SequenceType.PROTEIN) throw new Exception("Invalid protein sequence encoding.");
 		
-		long[] kmers = KmerUtils.encode(s.getSequence(), alphabet);
-		for (long kmer : kmers) {
-			long frequency = query.get(kmer) + 1; 
-			query.put(kmer, frequency);
+		context.load(s.getSequence());
+		return db.classify(context, sink);
+	}
+	
+	public KmerQueryContext newQueryContext() {
+		return new KmerQueryContext(seeds, alphabet);
+	}
+	
+	private KmerQueryContext getQueryContext() {
+		KmerQueryContext context = contexts.get();
+		if (context.getQuery().getCapacity() > MAX_RETAINED_CAPACITY) { //Don't keep a huge table for the short sequences that follow
+			context = newQueryContext();
+			contexts.set(context);
+		}
+		return context;
+	}
+	
+	//Returns the results in the same order as the sequences
+	public List<ClassifierResult[]> classifyAll(List<Sequence> sequences) throws Exception{
+		ClassifierResult[][] results = new ClassifierResult[sequences.size()][];
+		try {
+			pool.invoke(new BatchTask(sequences, results, 0, results.length));
+		}catch (RuntimeException e) {
+			throw unwrap(e);
+		}
+		return Arrays.asList(results);
+	}
+	
+	/*
+	 * Hands each sequence and its results to the consumer as soon as it has been classified,
+	 * so not in input order, and from the pool threads, so the consumer must be thread-safe.
+	 * The sequences are read lazily, with a bounded number of them in flight at a time.
+	 */
+	public void classifyAll(Iterable<Sequence> sequences, BiConsumer<Sequence, ClassifierResult[]> consumer) throws Exception{
+		Submitter submitter = new Submitter(consumer);
+		for (Sequence sequence : sequences) {
+			if (!submitter.submit(sequence)) break;
+		}
+		submitter.await();
+	}
+	
+	//Streams the records of a FASTA file through classifyAll(), as they are parsed
+	public void classifyAll(String file, BiConsumer<Sequence, ClassifierResult[]> consumer) throws Exception{
+		Submitter submitter = new Submitter(consumer);
+		new MappedFastaParser(SequenceType.PROTEIN) {
+			@Override
+			public void process() throws Exception {
+				//The parser can't be stopped, so a failed sequence is thrown out of it once the others have finished
+				if (!submitter.submit(getFASTASequence())) submitter.await();
+			}
+		}.parse(file);
+		submitter.await();
+	}
+	
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	private static Exception unwrap(Throwable e) {
+		while ((e instanceof CompletionException || e.getClass() == RuntimeException.class) && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e instanceof Exception ? (Exception) e : new ExecutionException(e);
+	}
+	
+	//Splits the batch in half until a single sequence is left, so idle threads can steal the other half
+	private class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 777L;
+		private List<Sequence> sequences;
+		private ClassifierResult[][] results;
+		private int from;
+		private int to;
+		
+		public BatchTask(List<Sequence> sequences, ClassifierResult[][] results, int from, int to) {
+			super();
+			this.sequences = sequences;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new BatchTask(sequences, results, from, middle), new BatchTask(sequences, results, middle, to));
+			}else if (to > from) {
+				try {
+					results[from] = classify(sequences.get(from));
+				}catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		}
+	}
+	
+	private class Submitter {
+		private BiConsumer<Sequence, ClassifierResult[]> consumer;
+		private Semaphore permits;
+		private int limit;
+		private AtomicReference<Throwable> error = new AtomicReference<>();
+		
+		public Submitter(BiConsumer<Sequence, ClassifierResult[]> consumer) {
+			super();
+			this.consumer = consumer;
+			this.limit = pool.getParallelism() * 4;
+			this.permits = new Semaphore(limit);
+		}
+		
+		//Returns false once a sequence has failed, after which nothing more is submitted
+		public boolean submit(Sequence sequence) throws InterruptedException {
+			if (error.get() != null) return false;
+			permits.acquire();
+			pool.execute(() -> {
+				try {
+					consumer.accept(sequence, classify(sequence));
+				}catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}finally {
+					permits.release();
+				}
+			});
+			return true;
+		}
+		
+		public void await() throws Exception {
+			permits.acquire(limit);
+			permits.release(limit);
+			if (error.get() != null) throw unwrap(error.get());
 		}
-		return db.classify(query);
 	}
 	
 	public void buildSubjectDatabase(String directory) throws Exception {
@@ -40,11 +198,11 @@ public class KmerClassifier {
 			KmerHashMap map = new KmerHashMap(seeds); //Create a KmerHashMap 
 			parser = new KmerAMPParser(SequenceType.PROTEIN, map);
 			parser.parse("./amps/" + amp.name() + ".fasta");
-			db.add(amp, map); //Add to database
+			db.add(amp, map.freeze()); //Add to database. The map is only read from now on
 		}
 	}
 	
-	private class KmerAMPParser extends AbstractFastaParser{
+	private class KmerAMPParser extends MappedFastaParser{
 		private KmerHashMap map;
 		
 		public KmerAMPParser(SequenceType type, KmerHashMap map) {
@@ -54,12 +212,9 @@ public class KmerClassifier {
 	
 		@Override
 		public void process() throws Exception {
-			Sequence s = super.getFASTASequence();
-
-			long[] kmers = KmerUtils.encode(s.getSequence(), alphabet);
+			long[] kmers = KmerUtils.encode(super.getSequence(), alphabet);
 			for (long kmer : kmers) {
-				long frequency = map.get(kmer) + 1; 
-				map.put(kmer, frequency);
+				map.increment(kmer);
 			}
 		}
 	}	
@@ -1,14 +1,31 @@
 package ie.gmit.bio.kmer;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.Serializable;
 import ie.gmit.bio.AntimicrobialPeptide;
 import ie.gmit.bio.kmer.metrics.KmerMetrics;
 public class KmerDatabase implements Serializable{
 	private static final long serialVersionUID = 777L;
-	private Map<AntimicrobialPeptide, KmerHashMap> db = new TreeMap<>();
+	private volatile Map<AntimicrobialPeptide, KmerMap> db = new TreeMap<>(); //Copied on write, so it is never changed while being read
+	private transient Map<AntimicrobialPeptide, KmerSeedIndex> indexes = new ConcurrentHashMap<>(); //Rebuilt on demand after loading
+	private transient volatile Map<AntimicrobialPeptide, AntimicrobialPeptide> resident = newResident(); //The loaded families, while there is a limit
+	private transient Map<AntimicrobialPeptide, Integer> maxMatches = new ConcurrentHashMap<>(); //Kept when an index is evicted, for the bounds
+	private transient volatile AntimicrobialPeptide[] families = new AntimicrobialPeptide[0]; //The keys of db, for iterating without an iterator
+	private transient volatile Postings postings; //Built on first use after the families have been added
+	private transient Map<AntimicrobialPeptide, KmerBloomFilter> filters = new ConcurrentHashMap<>();
+	private transient LongAdder checked = new LongAdder();
+	private transient LongAdder skipped = new LongAdder();
+	private transient LongAdder pruned = new LongAdder();
 	private long[] seeds;
 	private KmerMetrics metrics;
+	private boolean prefilter;
+	private int maxResident; //Zero for no limit
+	
+	//A posting index and the families of its ids, which are swapped together
+	private record Postings(KmerPostingIndex index, AntimicrobialPeptide[] families) {
+	}
 	
 	public KmerDatabase(long[] seeds, KmerMetrics metrics) {
 		super();
@@ -16,19 +33,242 @@ public class KmerDatabase implements Serializable{
 		this.metrics = metrics;
 	}
 
-	public void add(AntimicrobialPeptide amp, KmerHashMap map) {
-		db.put(amp, map);
+	/*
+	 * The map should be fully populated before it is added, as its seed index and prefilter
+	 * are built from it the first time the family is scored. classify() can be called from
+	 * many threads, including while a family is added or replaced, e.g. by an append to a
+	 * KmerDatabaseFile. A classification in progress then sees the family before or after.
+	 */
+	public void add(AntimicrobialPeptide amp, KmerMap map) {
+		load(amp, map);
+	}
+	
+	/*
+	 * Checks the query k-mers against a Bloom filter of each family before scoring it, and
+	 * skips the families that none of them can match. This only applies to classifyByHash()
+	 * and to metrics that score such a family zero. While the database scores from the
+	 * posting index, it only ever visits the families that match, so the filter is refused.
+	 * That is the case for a metric that uses the postings unless the resident families are
+	 * limited, and removing the limit turns the filter off again.
+	 */
+	public synchronized void setPrefilter(boolean prefilter) {
+		if (prefilter && usesPostings()) {
+			throw new IllegalStateException(metrics.getClass().getSimpleName() + " scores from the posting index, which the prefilter does not apply to.");
+		}
+		this.prefilter = prefilter;
+		if (!prefilter) filters.clear();
+	}
+	
+	public boolean isPrefilter() {
+		return prefilter;
+	}
+	
+	public KmerBloomFilter getPrefilter(AntimicrobialPeptide amp) {
+		KmerBloomFilter filter = filters.get(amp);
+		if (filter != null) return filter;
+		filter = filters.computeIfAbsent(amp, e -> new KmerBloomFilter(seeds, db.get(e)));
+		use(amp); //The map was loaded to build the filter
+		return filter;
+	}
+	
+	/*
+	 * Limits the number of families with a resident map and seed index, evicting the least
+	 * recently used. The map of an evicted family is unloaded if it is a LazyKmerMap, e.g. from
+	 * a KmerDatabaseFile, and is loaded again the next time the family is used. A posting
+	 * index would hold the k-mers of every family, so while there is a limit, the metrics
+	 * that score from the postings score each family from its seed index instead. Set this
+	 * before classifying.
+	 */
+	public synchronized void setMaxResidentFamilies(int max) {
+		maxResident = Math.max(max, 0);
+		if (maxResident > 0) postings = null;
+		if (usesPostings()) setPrefilter(false);
+		resident = newResident();
+		for (AntimicrobialPeptide amp : families) { //Evicts down to the new limit
+			if (indexes.containsKey(amp) || isLoaded(amp)) use(amp);
+		}
+	}
+	
+	public int getMaxResidentFamilies() {
+		return maxResident;
+	}
+	
+	//The number of families with their k-mer map in memory
+	public int getResidentFamilyCount() {
+		int count = 0;
+		for (AntimicrobialPeptide amp : families) {
+			if (isLoaded(amp)) count++;
+		}
+		return count;
+	}
+	
+	private boolean isLoaded(AntimicrobialPeptide amp) {
+		KmerMap map = db.get(amp);
+		return map != null && (!(map instanceof LazyKmerMap) || ((LazyKmerMap) map).isLoaded());
+	}
+	
+	//Only the recency is kept under the lock. The maps and indexes are loaded and built outside of it.
+	private Map<AntimicrobialPeptide, AntimicrobialPeptide> newResident() {
+		return new LinkedHashMap<>(16, 0.75f, true) { //Access order
+			private static final long serialVersionUID = 777L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<AntimicrobialPeptide, AntimicrobialPeptide> eldest) {
+				if (size() <= maxResident) return false;
+				evict(eldest.getKey());
+				return true;
+			}
+		};
+	}
+	
+	//Marks the family as the most recently used after its map has been loaded, evicting the least recent over the limit
+	private void use(AntimicrobialPeptide amp) {
+		if (maxResident == 0) return;
+		Map<AntimicrobialPeptide, AntimicrobialPeptide> recent = resident;
+		synchronized (recent) {
+			recent.put(amp, amp);
+		}
+	}
+	
+	private void evict(AntimicrobialPeptide amp) {
+		indexes.remove(amp);
+		KmerMap map = db.get(amp);
+		if (map instanceof LazyKmerMap) ((LazyKmerMap) map).unload();
+	}
+	
+	//The number of families that were checked against the prefilter, and how many of them were skipped
+	public long getPrefilterCheckCount() {
+		return checked.sum();
+	}
+	
+	public long getPrefilterSkipCount() {
+		return skipped.sum();
+	}
+	
+	public void resetPrefilterCounts() {
+		checked.reset();
+		skipped.reset();
+	}
+	
+	//The number of families that classify(query, k) did not need to score
+	public long getPrunedFamilyCount() {
+		return pruned.sum();
+	}
+	
+	public void resetPrunedFamilyCount() {
+		pruned.reset();
+	}
+	
+	private boolean isSkipped(AntimicrobialPeptide amp, long[] kmers, int length) {
+		checked.increment();
+		if (getPrefilter(amp).mightMatch(kmers, length)) return false;
+		skipped.increment();
+		return true;
+	}
+	
+	//Adds or replaces a family without building its seed index, which is then built on first use
+	synchronized void load(AntimicrobialPeptide amp, KmerMap map) {
+		Map<AntimicrobialPeptide, KmerMap> copy = new TreeMap<>(db);
+		copy.put(amp, map);
+		db = copy;
+		indexes.remove(amp);
+		maxMatches.remove(amp);
+		synchronized (resident) {
+			resident.remove(amp);
+		}
+		filters.remove(amp);
+		families = copy.keySet().toArray(new AntimicrobialPeptide[0]);
+		postings = null;
+	}
+	
+	public long[] getSeeds() {
+		return seeds;
+	}
+	
+	public KmerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public AntimicrobialPeptide[] getFamilies() {
+		return families.clone();
+	}
+	
+	public KmerMap getKmerMap(AntimicrobialPeptide amp) {
+		return db.get(amp);
+	}
+	
+	public KmerSeedIndex getSeedIndex(AntimicrobialPeptide amp) {
+		KmerSeedIndex index = indexes.get(amp);
+		if (index == null) { //Built without a lock, so that threads can load different families at once
+			KmerSeedIndex built = new KmerSeedIndex(seeds, db.get(amp));
+			index = indexes.putIfAbsent(amp, built);
+			if (index == null) index = built;
+			maxMatches.put(amp, index.getMaxMatches());
+		}
+		use(amp);
+		return index;
+	}
+	
+	//Inverted index over all families. The id of a family is its position in getFamilies().
+	public KmerPostingIndex getPostingIndex() {
+		return getPostings().index();
+	}
+	
+	private Postings getPostings() {
+		Postings current = postings;
+		if (current == null) {
+			synchronized (this) {
+				current = postings;
+				if (current == null) {
+					AntimicrobialPeptide[] amps = families;
+					KmerMap[] maps = new KmerMap[amps.length];
+					for (int i = 0; i < amps.length; i++) {
+						maps[i] = db.get(amps[i]);
+					}
+					current = new Postings(new KmerPostingIndex(seeds, maps), amps);
+					postings = current;
+				}
+			}
+		}
+		return current;
+	}
+	
+	//Not while the resident families are limited, as the posting index holds all of them
+	boolean usesPostings() {
+		return maxResident == 0 && metrics.usesPostings();
+	}
+	
+	private Object readResolve() { //Transient fields are not initialised on deserialisation
+		indexes = new ConcurrentHashMap<>();
+		resident = newResident();
+		maxMatches = new ConcurrentHashMap<>();
+		filters = new ConcurrentHashMap<>();
+		checked = new LongAdder();
+		skipped = new LongAdder();
+		pruned = new LongAdder();
+		families = db.keySet().toArray(new AntimicrobialPeptide[0]);
+		return this;
 	}
 	
 	
 	//This implementation is based on k-mer ranking
-	public ClassifierResult[] classify(KmerHashMap query) {
+	public ClassifierResult[] classify(KmerMap query) {
 		var res = new ArrayList<ClassifierResult>();
 
-	
-		db.keySet().forEach(e -> res.add(
-				new ClassifierResult(e, metrics.getDistance(seeds, query, db.get(e))))
-		);
+		if (usesPostings()) { //Single pass over all families
+			Postings current = getPostings();
+			double[] scores = metrics.getDistances(seeds, query, current.index());
+			for (int i = 0; i < current.families().length; i++) {
+				res.add(new ClassifierResult(current.families()[i], scores[i]));
+			}
+		}else {
+			boolean filtered = prefilter && metrics.isZeroWithoutMatches();
+			long[] kmers = filtered ? query.keys() : null;
+			for (AntimicrobialPeptide amp : db.keySet()) {
+				if (filtered && isSkipped(amp, kmers, kmers.length)) continue;
+				res.add(new ClassifierResult(amp, metrics.getDistance(seeds, query, getSeedIndex(amp))));
+			}
+		}
 
 		return res.stream()
 				.filter(n -> n.metric() > 0)
@@ -37,17 +277,155 @@ public class KmerDatabase implements Serializable{
 	}
 	
 	
-	public ClassifierResult[] classifyByHash(KmerHashMap query) {
+	/*
+	 * Returns the first k results of classify(). When the families are scored one at a time,
+	 * they are visited best bound first, and once the k-th best score ranks ahead of the
+	 * bound of the next family, none of the rest can overtake it and they are pruned. With
+	 * a posting index every family is already scored in one pass, so nothing is pruned, but
+	 * only the best k are kept and ranked.
+	 */
+	public ClassifierResult[] classify(KmerMap query, int k) {
+		AntimicrobialPeptide[] amps = families;
+		int[] best = new int[Math.max(k, 0)];
+		int count = 0;
+		
+		if (usesPostings()) {
+			Postings current = getPostings();
+			double[] scores = metrics.getDistances(seeds, query, current.index());
+			for (int family = 0; family < current.families().length; family++) {
+				count = offer(best, count, family, scores);
+			}
+			return toResults(current.families(), best, count, scores);
+		}
+		
+		/*
+		 * Order the families (by position in amps) best bound first. Those without a bound go
+		 * first, as they can't be pruned. That includes a family that has never had its seed
+		 * index built, as the bound comes from the index, and building it here would load
+		 * every family before any could be pruned.
+		 */
+		double[] scores = new double[amps.length];
+		double[] bounds = new double[amps.length];
+		int[] order = new int[amps.length];
+		for (int family = 0; family < amps.length; family++) {
+			Integer max = maxMatches.get(amps[family]);
+			bounds[family] = max == null ? Double.NaN : metrics.getBound(seeds, query, max);
+			int j = family;
+			while (j > 0 && isBoundBefore(family, order[j - 1], bounds)) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = family;
+		}
+		
+		boolean filtered = prefilter && metrics.isZeroWithoutMatches();
+		long[] kmers = filtered ? query.keys() : null;
+		for (int i = 0; i < order.length; i++) {
+			int family = order[i];
+			if (count == best.length && !Double.isNaN(bounds[family]) 
+					&& (count == 0 || metrics.compare(bounds[family], scores[best[count - 1]]) > 0)) {
+				pruned.add(order.length - i);
+				break;
+			}
+			if (filtered && isSkipped(amps[family], kmers, kmers.length)) continue;
+			
+			scores[family] = metrics.getDistance(seeds, query, getSeedIndex(amps[family]));
+			count = offer(best, count, family, scores);
+		}
+		return toResults(amps, best, count, scores);
+	}
+	
+	//Adds the family to the best k if it ranks ahead of the last of them, keeping them in rank order
+	private int offer(int[] best, int count, int family, double[] scores) {
+		if (!(scores[family] > 0)) return count; //Also drops a NaN score
+		if (count == best.length) {
+			if (count == 0 || !isBefore(family, best[count - 1], scores)) return count;
+			count--;
+		}
+		
+		int i = count++;
+		while (i > 0 && isBefore(family, best[i - 1], scores)) {
+			best[i] = best[i - 1];
+			i--;
+		}
+		best[i] = family;
+		return count;
+	}
+	
+	//Ties are broken by position, i.e. by ordinal, which is the order of the stable sort in classify()
+	private boolean isBefore(int family, int other, double[] scores) {
+		int c = metrics.compare(scores[family], scores[other]);
+		return c < 0 || (c == 0 && family < other);
+	}
+	
+	private boolean isBoundBefore(int family, int other, double[] bounds) {
+		if (Double.isNaN(bounds[other])) return false;
+		return Double.isNaN(bounds[family]) || metrics.compare(bounds[family], bounds[other]) < 0;
+	}
+	
+	private static ClassifierResult[] toResults(AntimicrobialPeptide[] amps, int[] best, int count, double[] scores) {
+		ClassifierResult[] results = new ClassifierResult[count];
+		for (int i = 0; i < count; i++) {
+			results[i] = new ClassifierResult(amps[best[i]], scores[best[i]]);
+		}
+		return results;
+	}
+	
+	/*
+	 * Scores the query in the context and passes the families with a metric above zero to
+	 * the sink, best first, in the same order as classify(). The scores, ranking and
+	 * results use the context and the sink, so nothing is allocated in the steady state
+	 * for metrics that override the KmerQueryContext methods. Returns the number of results.
+	 */
+	public int classify(KmerQueryContext query, ClassifierResultSink sink) {
+		AntimicrobialPeptide[] amps = families;
+		double[] scores = query.getScores(); //By position in amps
+		int[] order = query.getOrder();
+		int count = 0;
+		
+		boolean usesPostings = usesPostings();
+		boolean filtered = !usesPostings && prefilter && metrics.isZeroWithoutMatches();
+		if (usesPostings) {
+			Postings current = getPostings();
+			amps = current.families();
+			metrics.getDistances(seeds, query, current.index(), scores);
+		}
+		
+		for (int family = 0; family < amps.length; family++) {
+			if (!usesPostings) {
+				if (filtered && isSkipped(amps[family], query.getKmers(), query.getKmerCount())) continue;
+				scores[family] = metrics.getDistance(seeds, query, getSeedIndex(amps[family]));
+			}
+			if (!(scores[family] > 0)) continue;
+			
+			//Insertion sort, which is stable like the sorted stream in classify()
+			int i = count++;
+			while (i > 0 && metrics.compare(scores[order[i - 1]], scores[family]) > 0) {
+				order[i] = order[i - 1];
+				i--;
+			}
+			order[i] = family;
+		}
+		
+		for (int i = 0; i < count; i++) {
+			sink.accept(amps[order[i]], scores[order[i]]);
+		}
+		return count;
+	}
+	
+	public ClassifierResult[] classifyByHash(KmerMap query) {
 		List<ClassifierResult> res = new ArrayList<>();
 		Set<AntimicrobialPeptide> amps = db.keySet();
+		long[] keys = query.keys();
 		for (AntimicrobialPeptide amp : amps) {
-			KmerHashMap khm = db.get(amp);
+			if (prefilter && isSkipped(amp, keys, keys.length)) continue;
+			KmerMap khm = db.get(amp);
 			
 			long frequency = 0;
-			long[] keys = query.keys();
 			for (long key : keys) { 
 				frequency += khm.get(key); 
 			}
+			use(amp); //The map was loaded for the scan
 			
 			if (frequency > 0) {
 				res.add(new ClassifierResult(amp, Double.valueOf(frequency)));
@@ -0,0 +1,153 @@
+package ie.gmit.bio.kmer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import ie.gmit.bio.kmer.metrics.KmerMetrics;
+
+/*
+ * KmerDatabaseBundle
+ * --------------------
+ * The databases of several alphabets in a single file, for ensembles and for routing each
+ * query to the best alphabet of a family. The file starts with a header and a table of
+ * contents (little endian):
+ *
+ *   0  magic "KMERBDL1"       8  version           12 alphabet count
+ *   16 CRC32C of the table of contents
+ *   24 an entry per alphabet (ordinal, then the offset and length of its database), in 24 bytes
+ *
+ * followed by each database in the KmerDatabaseFile format, at an 8 byte aligned offset.
+ * The file is opened once and every database in it is opened from the same channel, which
+ * only reads their headers, as the families are mapped in place when first used. Switching
+ * alphabet is then a lookup with getDatabase(). Databases in a bundle can't be appended to
+ * or compacted; rewrite the bundle instead.
+ */
+public class KmerDatabaseBundle implements Closeable{
+	private static final long MAGIC = 0x314C444252454D4BL; //"KMERBDL1"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int TOC_ENTRY_SIZE = 24;
+	private FileChannel channel;
+	private KmerDatabaseFile[] files; //Indexed by alphabet ordinal
+	private AminoAcidAlphabet[] alphabets; //In the order of the file
+
+	private KmerDatabaseBundle(FileChannel channel) {
+		super();
+		this.channel = channel;
+		this.files = new KmerDatabaseFile[AminoAcidAlphabet.values().length];
+	}
+
+	public static void write(Map<AminoAcidAlphabet, KmerDatabase> dbs, String file) throws IOException {
+		write(dbs, file, false);
+	}
+
+	//Writes to a temporary file that then replaces the target, as KmerDatabaseFile.write() does
+	public static void write(Map<AminoAcidAlphabet, KmerDatabase> dbs, String file, boolean compressed) throws IOException {
+		long offset = KmerDatabaseFile.align(HEADER_SIZE + dbs.size() * TOC_ENTRY_SIZE);
+		ByteBuffer header = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(0, MAGIC);
+		header.putInt(8, VERSION);
+		header.putInt(12, dbs.size());
+
+		Path target = Path.of(file);
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			int entry = HEADER_SIZE;
+			for (Map.Entry<AminoAcidAlphabet, KmerDatabase> db : dbs.entrySet()) {
+				long length = KmerDatabaseFile.write(db.getValue(), db.getKey(), channel, offset, compressed);
+				header.putInt(entry, db.getKey().ordinal());
+				header.putLong(entry + 8, offset);
+				header.putLong(entry + 16, length);
+				entry += TOC_ENTRY_SIZE;
+				offset = KmerDatabaseFile.align(offset + length);
+			}
+
+			CRC32C crc = new CRC32C();
+			crc.update(header.duplicate().position(HEADER_SIZE));
+			header.putLong(16, crc.getValue());
+			channel.position(0);
+			while (header.hasRemaining()) channel.write(header);
+			channel.force(true);
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static KmerDatabaseBundle open(String file) throws IOException {
+		return open(file, null);
+	}
+
+	//Opens every database with the given metric in place of the one it was written with, unless that is null
+	public static KmerDatabaseBundle open(String file, KmerMetrics metrics) throws IOException {
+		Path path = Path.of(file);
+		KmerDatabaseBundle result = new KmerDatabaseBundle(FileChannel.open(path, StandardOpenOption.READ));
+		try {
+			result.readHeader(path, metrics);
+		}catch (IOException | RuntimeException e) {
+			result.close();
+			throw e;
+		}
+		return result;
+	}
+
+	private void readHeader(Path path, KmerMetrics metrics) throws IOException {
+		ByteBuffer fixed = read(0, HEADER_SIZE);
+		if (fixed.getLong(0) != MAGIC) throw new IOException("Not a k-mer database bundle: " + path);
+		int version = fixed.getInt(8);
+		if (version != VERSION) throw new IOException("Unsupported k-mer database bundle version " + version + ": " + path);
+
+		int count = fixed.getInt(12);
+		ByteBuffer toc = read(HEADER_SIZE, (int) KmerDatabaseFile.align(HEADER_SIZE + count * TOC_ENTRY_SIZE) - HEADER_SIZE);
+		CRC32C crc = new CRC32C();
+		crc.update(toc.duplicate());
+		if (crc.getValue() != fixed.getLong(16)) throw new IOException("Corrupt k-mer database bundle header: " + path);
+
+		AminoAcidAlphabet[] all = AminoAcidAlphabet.values();
+		alphabets = new AminoAcidAlphabet[count];
+		for (int i = 0; i < count; i++) {
+			int entry = i * TOC_ENTRY_SIZE;
+			alphabets[i] = all[toc.getInt(entry)];
+			files[alphabets[i].ordinal()] = KmerDatabaseFile.open(path, channel, toc.getLong(entry + 8), toc.getLong(entry + 16), metrics);
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		return KmerDatabaseFile.read(channel, position, length, "k-mer database bundle");
+	}
+
+	public AminoAcidAlphabet[] getAlphabets() {
+		return alphabets.clone();
+	}
+
+	public boolean contains(AminoAcidAlphabet alphabet) {
+		return files[alphabet.ordinal()] != null;
+	}
+
+	//The database of the alphabet, or null if it isn't in the bundle
+	public KmerDatabase getDatabase(AminoAcidAlphabet alphabet) {
+		KmerDatabaseFile file = files[alphabet.ordinal()];
+		return file == null ? null : file.getDatabase();
+	}
+
+	public KmerDatabaseFile getDatabaseFile(AminoAcidAlphabet alphabet) {
+		return files[alphabet.ordinal()];
+	}
+
+	//Checks the sections of every database against their checksums, which reads the whole file
+	public void verify() throws IOException {
+		for (AminoAcidAlphabet alphabet : alphabets) {
+			files[alphabet.ordinal()].verify();
+		}
+	}
+
+	//Families that have not been loaded yet can't be loaded after this, in any of the databases
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
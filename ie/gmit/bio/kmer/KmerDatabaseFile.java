@@ -0,0 +1,532 @@
+package ie.gmit.bio.kmer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32C;
+
+import ie.gmit.bio.AntimicrobialPeptide;
+import ie.gmit.bio.kmer.metrics.*;
+
+/*
+ * KmerDatabaseFile
+ * --------------------
+ * A versioned binary file format for a KmerDatabase that is memory-mapped and queried in
+ * place, rather than deserialised. All numbers are little endian. The file starts with a
+ * fixed header:
+ *
+ *   0  magic "KMERDB01"       8  version           12 flags (bit 0: prefilter, 1: compressed)
+ *   16 seed count             20 family count      24 metadata length
+ *   32 CRC32C of bytes 0-31 and 40 up to the first family section
+ *   40 the seeds, as longs
+ *
+ * followed by a table of contents entry per family (ordinal, k-mer count, section offset
+ * and section CRC32C, in 24 bytes) and the metadata, padded to 8 bytes. The metadata is the
+ * alphabet, the class name of the metric and a length-prefixed block of its parameters,
+ * e.g. the top N of the out-of-place metric. Only the metrics in this package are known by
+ * name, so a file written with any other has to be opened with a metric. Each family
+ * section holds its k-mers sorted by their value under the primary seed, then their
+ * frequencies. In a compressed file, each section is instead encoded as a CompressedKmerMap,
+ * which is several times smaller.
+ *
+ * Opening a file only reads the header and the table of contents. Each family is a
+ * LazyKmerMap that maps its section as a MappedKmerMap the first time it is used (or a
+ * CompressedKmerMap if compressed), so with KmerDatabase.setMaxResidentFamilies() only the
+ * families that are in use are held. The header checksum is checked on open and the
+ * section checksums by verify(). The file is kept open for loading until close() is called.
+ *
+ * New k-mer counts are added with append(), which writes them to the end of the file as a
+ * delta segment (magic "KMERDLT1", family ordinal, k-mer count and CRC32C, then a section
+ * as above) without touching what is already there. A family with delta segments is a
+ * MergedKmerMap of its base section and the segments, which sums their counts at query
+ * time. A segment that was only partly written is ignored and then overwritten by the
+ * next append. compact() folds the segments back into the base sections by rewriting the
+ * file, and compactInBackground() does the same on an executor.
+ */
+public class KmerDatabaseFile implements Closeable{
+	private static final long MAGIC = 0x3130424452454D4BL; //"KMERDB01"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final int TOC_ENTRY_SIZE = 24;
+	private static final int PREFILTER = 1;
+	private static final int COMPRESSED = 2;
+	private static final long SEGMENT_MAGIC = 0x31544C4452454D4BL; //"KMERDLT1"
+	private static final int SEGMENT_HEADER_SIZE = 24;
+	private Path path;
+	private FileChannel channel;
+	private long base; //Of the database in the file, which is only non-zero in a KmerDatabaseBundle
+	private long limit; //The end of the database, relative to the base
+	private boolean bundled;
+	private AminoAcidAlphabet alphabet;
+	private KmerDatabase db;
+	private long mask;
+	private int[] counts; //By family ordinal
+	private long[] offsets;
+	private long[] lengths;
+	private long[] checksums;
+	private List<Segment> segments = new ArrayList<>();
+	private final Object compaction = new Object();
+	private long end; //Of the last complete section or segment
+	private int version;
+	private boolean compressed;
+
+	private record Segment(int ordinal, long offset, int count, long length, long checksum) {
+	}
+
+	private KmerDatabaseFile(Path path) throws IOException {
+		super();
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.limit = channel.size();
+	}
+
+	//A database held in a KmerDatabaseBundle, which owns the channel
+	private KmerDatabaseFile(Path path, FileChannel channel, long base, long length) {
+		super();
+		this.path = path;
+		this.channel = channel;
+		this.base = base;
+		this.limit = length;
+		this.bundled = true;
+	}
+
+	public static void write(KmerDatabase db, AminoAcidAlphabet alphabet, String file) throws IOException {
+		write(db, alphabet, file, false);
+	}
+
+	//Writes to a temporary file that then replaces the target, so a reader never sees half a file
+	public static void write(KmerDatabase db, AminoAcidAlphabet alphabet, String file, boolean compressed) throws IOException {
+		Path target = Path.of(file);
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			write(db, alphabet, channel, 0, compressed);
+			channel.force(true);
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	//Writes the database at the base of the channel, with its offsets relative to the base, and returns its length
+	static long write(KmerDatabase db, AminoAcidAlphabet alphabet, FileChannel channel, long base, boolean compressed) throws IOException {
+		AntimicrobialPeptide[] amps = db.getFamilies();
+		KmerMap[] maps = new KmerMap[amps.length];
+		for (int f = 0; f < amps.length; f++) {
+			maps[f] = db.getKmerMap(amps[f]);
+		}
+		return write(db, amps, maps, alphabet, channel, base, compressed);
+	}
+
+	//As above, but with the given maps for the families in place of those in the database
+	private static long write(KmerDatabase db, AntimicrobialPeptide[] amps, KmerMap[] maps, AminoAcidAlphabet alphabet,
+			FileChannel channel, long base, boolean compressed) throws IOException {
+		long[] seeds = db.getSeeds();
+		long mask = seeds.length > 0 ? seeds[0] : -1L;
+		byte[] metadata = getMetadata(alphabet, db.getMetrics());
+
+		int tocOffset = HEADER_SIZE + seeds.length * 8;
+		int metadataOffset = tocOffset + amps.length * TOC_ENTRY_SIZE;
+		long offset = align(metadataOffset + metadata.length);
+
+		ByteBuffer header = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(0, MAGIC);
+		header.putInt(8, VERSION);
+		header.putInt(12, (db.isPrefilter() ? PREFILTER : 0) | (compressed ? COMPRESSED : 0));
+		header.putInt(16, seeds.length);
+		header.putInt(20, amps.length);
+		header.putInt(24, metadata.length);
+		for (int i = 0; i < seeds.length; i++) {
+			header.putLong(HEADER_SIZE + i * 8, seeds[i]);
+		}
+		header.put(metadataOffset, metadata);
+
+		channel.position(base + offset);
+		for (int f = 0; f < amps.length; f++) {
+			ByteBuffer section = getSection(maps[f], mask, compressed);
+			CRC32C crc = new CRC32C();
+			crc.update(section.duplicate());
+
+			int entry = tocOffset + f * TOC_ENTRY_SIZE;
+			header.putInt(entry, amps[f].ordinal());
+			header.putInt(entry + 4, getCount(section, compressed));
+			header.putLong(entry + 8, offset);
+			header.putLong(entry + 16, crc.getValue());
+			while (section.hasRemaining()) channel.write(section);
+			offset += section.capacity();
+		}
+
+		header.putLong(32, getHeaderChecksum(header.duplicate().limit(32), header.duplicate().position(HEADER_SIZE)));
+		channel.position(base);
+		while (header.hasRemaining()) channel.write(header);
+		return offset;
+	}
+
+	private static ByteBuffer getSection(KmerMap map, long mask, boolean compressed) {
+		return compressed ? CompressedKmerMap.encode(map, mask) : getSection(map, mask);
+	}
+
+	private static int getCount(ByteBuffer section, boolean compressed) {
+		return compressed ? section.getInt(0) : section.capacity() / 16;
+	}
+
+	//The k-mers of the map sorted by their value under the mask, followed by their frequencies
+	private static ByteBuffer getSection(KmerMap map, long mask) {
+		long[] keys = map.keys();
+		long[] sorted = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) sorted[i] = keys[i] & mask;
+		Arrays.sort(sorted);
+
+		ByteBuffer section = ByteBuffer.allocate(keys.length * 16).order(ByteOrder.LITTLE_ENDIAN);
+		for (long key : keys) {
+			int index = Arrays.binarySearch(sorted, key & mask); //The keys are distinct under the mask
+			section.putLong(index * 8, key);
+			section.putLong((keys.length + index) * 8, map.get(key));
+		}
+		return section;
+	}
+
+	private static byte[] getMetadata(AminoAcidAlphabet alphabet, KmerMetrics metrics) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeUTF(alphabet.name());
+			out.writeUTF(metrics.getClass().getName());
+
+			ByteArrayOutputStream parameters = new ByteArrayOutputStream();
+			try (DataOutputStream config = new DataOutputStream(parameters)) {
+				if (metrics instanceof OutOfPlaceMetric outOfPlace) config.writeInt(outOfPlace.getTop());
+			}
+			out.writeInt(parameters.size());
+			parameters.writeTo(out);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static KmerDatabaseFile open(String file) throws IOException {
+		return open(file, null);
+	}
+
+	//Opens the file with the given metric in place of the one it was written with, unless that is null
+	public static KmerDatabaseFile open(String file, KmerMetrics metrics) throws IOException {
+		KmerDatabaseFile result = new KmerDatabaseFile(Path.of(file));
+		try {
+			result.readHeader(metrics);
+		}catch (IOException | RuntimeException e) {
+			result.close();
+			throw e;
+		}
+		return result;
+	}
+
+	static KmerDatabaseFile open(Path path, FileChannel channel, long base, long length, KmerMetrics metrics) throws IOException {
+		KmerDatabaseFile result = new KmerDatabaseFile(path, channel, base, length);
+		result.readHeader(metrics);
+		return result;
+	}
+
+	//Reads the header and segments and (re)registers every family with the database
+	private void readHeader(KmerMetrics metrics) throws IOException {
+		String file = path.toString();
+		ByteBuffer fixed = read(0, HEADER_SIZE);
+		if (fixed.getLong(0) != MAGIC) throw new IOException("Not a k-mer database file: " + file);
+		version = fixed.getInt(8);
+		if (version < 1 || version > VERSION) throw new IOException("Unsupported k-mer database version " + version + ": " + file);
+
+		int flags = fixed.getInt(12);
+		int seedCount = fixed.getInt(16);
+		int familyCount = fixed.getInt(20);
+		int metadataLength = fixed.getInt(24);
+		long headerLength = HEADER_SIZE + seedCount * 8L + familyCount * (long) TOC_ENTRY_SIZE + metadataLength;
+		if (seedCount < 0 || familyCount < 0 || metadataLength < 0 || align(headerLength) > limit) {
+			throw new IOException("Corrupt k-mer database header: " + file);
+		}
+		int tocOffset = HEADER_SIZE + seedCount * 8;
+		int metadataOffset = tocOffset + familyCount * TOC_ENTRY_SIZE;
+		ByteBuffer header = read(HEADER_SIZE, (int) (align(headerLength) - HEADER_SIZE)); //With the padding
+
+		if (getHeaderChecksum(fixed.duplicate().limit(32), header.duplicate()) != fixed.getLong(32)) {
+			throw new IOException("Corrupt k-mer database header: " + file);
+		}
+		if ((flags & ~(PREFILTER | COMPRESSED)) != 0) throw new IOException("Unsupported k-mer database flags " + flags + ": " + file);
+		compressed = (flags & COMPRESSED) != 0;
+
+		long[] seeds = new long[seedCount];
+		for (int i = 0; i < seedCount; i++) {
+			seeds[i] = header.getLong(i * 8);
+		}
+		mask = seedCount > 0 ? seeds[0] : -1L;
+
+		byte[] metadata = new byte[metadataLength];
+		header.get(metadataOffset - HEADER_SIZE, metadata);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata));
+		alphabet = AminoAcidAlphabet.valueOf(in.readUTF());
+		String metricName = in.readUTF();
+		byte[] config = in.readNBytes(in.readInt());
+		if (db == null) { //Otherwise the file has been compacted and the families are reloaded
+			if (metrics == null) metrics = getMetrics(metricName, config, file); //The parameters are ignored for an override
+			db = new KmerDatabase(seeds, metrics);
+			db.setPrefilter((flags & PREFILTER) != 0 && !db.usesPostings()); //A metric override may score from the postings
+		}
+
+		int families = AntimicrobialPeptide.values().length;
+		counts = new int[families];
+		offsets = new long[families]; //Zero if the family has no base section
+		lengths = new long[families];
+		checksums = new long[families];
+		end = align(metadataOffset + metadataLength);
+		for (int f = 0; f < familyCount; f++) {
+			int entry = tocOffset - HEADER_SIZE + f * TOC_ENTRY_SIZE;
+			int ordinal = header.getInt(entry);
+			counts[ordinal] = header.getInt(entry + 4);
+			offsets[ordinal] = header.getLong(entry + 8);
+			checksums[ordinal] = header.getLong(entry + 16);
+			lengths[ordinal] = getLength(offsets[ordinal], counts[ordinal]);
+			end = Math.max(end, offsets[ordinal] + lengths[ordinal]);
+		}
+
+		readSegments();
+		for (AntimicrobialPeptide amp : AntimicrobialPeptide.values()) {
+			register(amp);
+		}
+	}
+
+	//Reads the delta segment headers after the base sections, up to the end of the last complete one
+	private void readSegments() throws IOException {
+		segments.clear();
+		long size = limit;
+		while (end + SEGMENT_HEADER_SIZE + (compressed ? 8 : 0) <= size) {
+			ByteBuffer header = read(end, SEGMENT_HEADER_SIZE);
+			int count = header.getInt(12);
+			if (header.getLong(0) != SEGMENT_MAGIC || count < 0) break;
+			long length = getLength(end + SEGMENT_HEADER_SIZE, count);
+			if (length < 0 || end + SEGMENT_HEADER_SIZE + length > size) break;
+
+			segments.add(new Segment(header.getInt(8), end + SEGMENT_HEADER_SIZE, count, length, header.getLong(16)));
+			end += SEGMENT_HEADER_SIZE + length;
+		}
+	}
+
+	//The length in bytes of the section at the offset, which a compressed section holds in its header
+	private long getLength(long offset, int count) throws IOException {
+		return compressed ? read(offset + 4, 4).getInt(0) : count * 16L;
+	}
+
+	private void register(AntimicrobialPeptide amp) {
+		int parts = offsets[amp.ordinal()] > 0 ? 1 : 0;
+		for (Segment segment : segments) {
+			if (segment.ordinal() == amp.ordinal()) parts++;
+		}
+		if (parts == 0) return;
+
+		int size = parts == 1 && offsets[amp.ordinal()] > 0 ? counts[amp.ordinal()] : -1; //Not known until merged
+		db.load(amp, new LazyKmerMap(() -> map(amp), size));
+	}
+
+	//Maps the base section and any delta segments of the family in place, or returns null if it has neither
+	public synchronized KmerMap map(AntimicrobialPeptide amp) throws IOException {
+		return map(amp, segments);
+	}
+
+	private KmerMap map(AntimicrobialPeptide amp, List<Segment> segments) throws IOException {
+		List<KmerMap> parts = new ArrayList<>();
+		if (offsets[amp.ordinal()] > 0) parts.add(map(offsets[amp.ordinal()], counts[amp.ordinal()], lengths[amp.ordinal()]));
+		for (Segment segment : segments) {
+			if (segment.ordinal() == amp.ordinal()) parts.add(map(segment.offset(), segment.count(), segment.length()));
+		}
+		if (parts.isEmpty()) return null;
+		return parts.size() == 1 ? parts.get(0) : new MergedKmerMap(mask, parts.toArray(new KmerMap[parts.size()]));
+	}
+
+	private KmerMap map(long offset, int count, long length) throws IOException {
+		ByteBuffer section = mapSection(offset, length);
+		if (compressed) return new CompressedKmerMap(mask, section);
+
+		LongBuffer keys = section.slice(0, count * 8).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		LongBuffer frequencies = section.slice(count * 8, count * 8).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		return new MappedKmerMap(mask, keys, frequencies);
+	}
+
+	private ByteBuffer mapSection(long offset, long length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, base + offset, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/*
+	 * Appends the k-mer counts of the map to the family as a delta segment and reloads the
+	 * family, so the cost is in proportion to the new k-mers only. Anything after the last
+	 * complete segment, i.e. a failed append, is overwritten.
+	 */
+	public synchronized void append(AntimicrobialPeptide amp, KmerMap map) throws IOException {
+		if (bundled) throw new UnsupportedOperationException("A database in a bundle cannot be appended to.");
+		ByteBuffer section = getSection(map, mask, compressed);
+		CRC32C crc = new CRC32C();
+		crc.update(section.duplicate());
+
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putLong(0, SEGMENT_MAGIC);
+		header.putInt(8, amp.ordinal());
+		header.putInt(12, getCount(section, compressed));
+		header.putLong(16, crc.getValue());
+
+		try (FileChannel writer = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			writer.truncate(end);
+			writer.position(end);
+			while (header.hasRemaining()) writer.write(header);
+			while (section.hasRemaining()) writer.write(section);
+			writer.force(true);
+		}
+		segments.add(new Segment(amp.ordinal(), end + SEGMENT_HEADER_SIZE, getCount(section, compressed), section.capacity(), crc.getValue()));
+		end += SEGMENT_HEADER_SIZE + section.capacity();
+		limit = end;
+		register(amp);
+	}
+
+	/*
+	 * Rewrites the file with each family merged into a single base section and no delta
+	 * segments, then reloads the families from it. Maps already handed out stay valid, as
+	 * they are mapped from the old file. The families are merged and written from the
+	 * segments there were at the start, without holding the lock that loads and appends
+	 * take. Only the swap to the new file is made under it, and any segments appended in
+	 * the meantime are first copied to the end of the new file as they are.
+	 */
+	public void compact() throws IOException {
+		if (bundled) throw new UnsupportedOperationException("A database in a bundle cannot be compacted.");
+		synchronized (compaction) { //One at a time, as they share the temporary file
+			List<Segment> merged;
+			long written;
+			synchronized (this) {
+				if (segments.isEmpty()) return;
+				merged = new ArrayList<>(segments);
+				written = end;
+			}
+
+			List<AntimicrobialPeptide> amps = new ArrayList<>();
+			List<KmerMap> maps = new ArrayList<>();
+			for (AntimicrobialPeptide amp : AntimicrobialPeptide.values()) {
+				KmerMap map = map(amp, merged);
+				if (map == null) continue;
+				amps.add(amp);
+				maps.add(map);
+			}
+
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (FileChannel writer = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				writer.position(write(db, amps.toArray(new AntimicrobialPeptide[amps.size()]), maps.toArray(new KmerMap[maps.size()]),
+						alphabet, writer, 0, compressed));
+
+				synchronized (this) {
+					for (long position = written; position < end; ) { //A segment holds no offsets, so it can be moved
+						position += channel.transferTo(position, end - position, writer);
+					}
+					writer.force(true);
+					writer.close();
+					Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+					channel.close();
+					channel = FileChannel.open(path, StandardOpenOption.READ);
+					limit = channel.size();
+					readHeader(null);
+				}
+			}
+		}
+	}
+
+	public CompletableFuture<Void> compactInBackground(Executor executor) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				compact();
+			}catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	//The metric that the file was written with, from its name and the parameters that getMetadata() wrote for it
+	private static KmerMetrics getMetrics(String name, byte[] config, String file) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(config));
+		KmerMetrics metrics;
+		if (name.equals(MajorityCountMetric.class.getName())) {
+			metrics = new MajorityCountMetric();
+		}else if (name.equals(NaiveMajorityCountMetric.class.getName())) {
+			metrics = new NaiveMajorityCountMetric();
+		}else if (name.equals(OutOfPlaceMetric.class.getName())) {
+			metrics = new OutOfPlaceMetric(in.readInt());
+		}else {
+			throw new IOException("Unknown metric " + name + " in k-mer database file " + file + ". Open the file with a metric instead.");
+		}
+		if (in.available() != 0) throw new IOException("Corrupt parameters for metric " + name + " in k-mer database file: " + file);
+		return metrics;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		return read(channel, base + position, length, "k-mer database file");
+	}
+
+	//Reads exactly length bytes at the position of the channel, which a KmerDatabaseBundle shares
+	static ByteBuffer read(FileChannel channel, long position, int length, String kind) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Truncated " + kind + ".");
+		}
+		return buffer.flip();
+	}
+
+	//The checksum of the fixed header before the checksum itself, and of everything from the seeds up to the first section
+	private static long getHeaderChecksum(ByteBuffer fixed, ByteBuffer rest) {
+		CRC32C crc = new CRC32C();
+		crc.update(fixed);
+		crc.update(rest);
+		return crc.getValue();
+	}
+
+	static long align(long offset) { //To 8 bytes, for the sections and for the databases in a bundle
+		return (offset + 7) & ~7L;
+	}
+
+	//Checks every family section and delta segment against its checksum, which reads the whole file
+	public synchronized void verify() throws IOException {
+		for (AntimicrobialPeptide amp : AntimicrobialPeptide.values()) {
+			if (offsets[amp.ordinal()] == 0) continue;
+			verify(offsets[amp.ordinal()], lengths[amp.ordinal()], checksums[amp.ordinal()], amp.name());
+		}
+		for (Segment segment : segments) {
+			verify(segment.offset(), segment.length(), segment.checksum(), "delta of " + AntimicrobialPeptide.values()[segment.ordinal()].name());
+		}
+	}
+
+	private void verify(long offset, long length, long checksum, String name) throws IOException {
+		CRC32C crc = new CRC32C();
+		crc.update(mapSection(offset, length));
+		if (crc.getValue() != checksum) throw new IOException("Corrupt k-mer database section: " + name);
+	}
+
+	public AminoAcidAlphabet getAlphabet() {
+		return alphabet;
+	}
+
+	public KmerDatabase getDatabase() {
+		return db;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	//Families that have not been loaded yet can't be loaded after this. A bundle closes its own file.
+	@Override
+	public synchronized void close() throws IOException {
+		if (!bundled) channel.close();
+	}
+}
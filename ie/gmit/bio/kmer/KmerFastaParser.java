@@ -1,14 +1,13 @@
 package ie.gmit.bio.kmer;
 
-import ie.gmit.bio.AbstractFastaParser;
-import ie.gmit.bio.Sequence;
+import ie.gmit.bio.MappedFastaParser;
 import ie.gmit.bio.SequenceType;
 
-public class KmerFastaParser extends AbstractFastaParser{
+public class KmerFastaParser extends MappedFastaParser{
 	private AminoAcidAlphabet alphabet;
-	private KmerHashMap map;
+	private KmerMap map;
 	
-	public KmerFastaParser(SequenceType type, AminoAcidAlphabet alphabet, KmerHashMap map) {
+	public KmerFastaParser(SequenceType type, AminoAcidAlphabet alphabet, KmerMap map) {
 		super(type);
 		this.alphabet = alphabet;
 		this.map = map;
@@ -16,13 +15,11 @@ public class KmerFastaParser extends AbstractFastaParser{
 
 	@Override
 	public void process() throws Exception {
-		Sequence s = super.getFASTASequence();
-		long[] kmers = KmerUtils.encode(s.getSequence(), alphabet);
+		long[] kmers = KmerUtils.encode(super.getSequence(), alphabet);
 
 		//Get rid of all this crap and use the KmerDatabase instead
 		for (long kmer : kmers) {
-			long frequency = map.get(kmer) + 1; 
-			map.put(kmer, frequency);
+			map.increment(kmer);
 		}
 	}
 }
\ No newline at end of file
@@ -4,111 +4,98 @@ import java.io.Serializable;
 import java.util.*;
 
 import ie.gmit.bio.kmer.metrics.KmerFrequency;
-public class KmerHashMap implements Serializable{
-	private static final long serialVersionUID = 777L;
+
+/*
+ * KmerHashMap
+ * --------------------
+ * An open-addressing map of k-mer => frequency. The keys and frequencies are held in
+ * a pair of parallel long[] arrays with a power-of-two capacity and linear probing,
+ * so no object is created per k-mer. Two k-mers are the same key if they are equal
+ * under the primary (first) spaced seed, and the first k-mer inserted is the one
+ * that is kept. A slot with a frequency of zero is empty.
+ */
+public class KmerHashMap implements KmerMap, Serializable{
+	private static final long serialVersionUID = 778L; //Was 777L with a chain of entry objects per bucket, which can't be read into the arrays
+	private static final float MAX_LOAD_FACTOR = 0.75f; //Linear probing degrades quickly above this
 	private float loadFactor;
-	private long[] seeds;	
-	private KmerMapEntry[] buckets;
-	private KmerMapEntry head;
-	private KmerMapEntry entry;
-	private int bucketIndex;
+	private long[] seeds;
+	private long mask;
+	private long[] keys;
+	private long[] frequencies;
+	private int threshold;
 	private int size;
-	
+
 	public KmerHashMap(long[] seeds) {
-		this(16, seeds, 0.99f);
+		this(16, seeds, MAX_LOAD_FACTOR);
 	}
 
 	public KmerHashMap(long[] seeds, float loadFactor) {
 		this(16, seeds, loadFactor);
 	}
-	
+
 	public KmerHashMap(int capacity, long[] seeds, float loadFactor) {
 		super();
 		this.seeds = seeds;
-		this.loadFactor = loadFactor;
-		buckets = new KmerMapEntry[capacity];
+		this.mask = seeds.length > 0 ? seeds[0] : -1L; //No usable seeds => exact matching
+		this.loadFactor = Math.min(loadFactor, MAX_LOAD_FACTOR);
+		allocate(tableSize(capacity, this.loadFactor));
 	}
-	
+
+	@Override
 	public long get(long key){
-		long frequency = 0;
-		for (long seed : seeds) {
-			bucketIndex = hash(key, seed) % buckets.length;
-			if (bucketIndex < 0) bucketIndex = -bucketIndex;
-			entry = buckets[bucketIndex];
-			
-			if (entry != null){
-				do{
-					if (isEqual(key, entry.getKey(), seed)) {
-						return entry.getFrequency();
-					}
-					entry = entry.getNext();
-				}while(entry != null);
-			}
-		}
-		return frequency;
+		int index = indexOf(key);
+		return index < 0 ? 0 : frequencies[index];
 	}
-	
+
+	@Override
 	public void put(long key, long frequency){
-		put(buckets, key, frequency);
-	}
-	
-	private void put(KmerMapEntry[] entries, long key, long frequency){
-		if (entries == buckets) checkCapacity();
-		
-		for (long seed : seeds) {
-			bucketIndex = hash(key, seed) % entries.length;
-			if (bucketIndex < 0) bucketIndex = -bucketIndex;
-			
-			head = entries[bucketIndex];
-			entry = head;
-			
-			if (entry == null){ //New insertion
-				entries[bucketIndex] = new KmerMapEntry(this, key, frequency);
-				if (entries == buckets) size++;
-				return;
-			}else{
-				do{
-					if (isEqual(entry.getKey(), key, seed)) {
-						entry.setValue(frequency); 
-						return;
-					}
-					
-					if (!entry.hasNext()){ 
-						entry.setNext(new KmerMapEntry(this, key, frequency));
-						if (entries == buckets) size++;
-						return;
-					}
-					entry = entry.getNext();
-				}while(entry != null);
-			}
+		if (frequency == 0) { //A zero frequency is an empty slot
+			int index = indexOf(key);
+			if (index >= 0) remove(index);
+			return;
+		}
+
+		int index = slotOf(key);
+		if (frequencies[index] == 0) {
+			insert(index, key, frequency);
+		}else {
+			frequencies[index] = frequency;
+		}
+	}
+
+	//Adds one to the frequency of a k-mer in a single probe and returns the new frequency
+	@Override
+	public long increment(long key) {
+		int index = slotOf(key);
+		if (frequencies[index] == 0) {
+			insert(index, key, 1);
+			return 1;
 		}
+		return ++frequencies[index];
 	}
-	
+
+	@Override
 	public long[] keys() {
 		long[] keys = new long[size];
 		int index = 0;
-		for (KmerMapEntry entry : buckets) {
-			while (entry != null) {
-				keys[index] = entry.getKey();
+		for (int i = 0; i < this.keys.length; i++) {
+			if (frequencies[i] != 0) {
+				keys[index] = this.keys[i];
 				index++;
-				
-				entry = entry.getNext();
 			}
 		}
 		return keys;
 	}
-	
+
 	private List<KmerFrequency> getSortedKmerFrequencies() {
-		List<KmerFrequency> list = new ArrayList<>();
-		for (KmerMapEntry entry : buckets) {
-			while (entry != null) {
-				list.add(new KmerFrequency(entry.getKey(), entry.getFrequency()));
-				entry = entry.getNext();
-			}
+		List<KmerFrequency> list = new ArrayList<>(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (frequencies[i] != 0) list.add(new KmerFrequency(keys[i], frequencies[i]));
 		}
 		return list;
 	}
-	
+
+	@Override
 	public KmerFrequency[] getSortedKmerFrequencies(int limit) {
 		return getSortedKmerFrequencies()
 				.stream()
@@ -117,102 +104,116 @@ public class KmerHashMap implements Serializable{
 				.toArray(KmerFrequency[]::new);
 	}
 
-	private void checkCapacity() {
-		if (size / buckets.length > loadFactor) resize();
+	//Builds an immutable copy of the map sorted by key, for once it will only be read
+	public FrozenKmerMap freeze() {
+		long[] sorted = new long[size];
+		int index = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (frequencies[i] != 0) sorted[index++] = keys[i] & mask;
+		}
+		Arrays.sort(sorted);
+
+		long[] kmers = new long[size];
+		long[] counts = new long[size];
+		for (int i = 0; i < size; i++) {
+			int slot = slotOf(sorted[i]);
+			kmers[i] = keys[slot];
+			counts[i] = frequencies[slot];
+		}
+		return new FrozenKmerMap(mask, kmers, counts);
+	}
+
+	//Returns the slot holding the key, or the empty slot where it should be inserted
+	private int slotOf(long key) {
+		long masked = key & mask;
+		int last = keys.length - 1;
+		int index = KmerUtils.hash(masked) & last;
+		while (frequencies[index] != 0 && (keys[index] & mask) != masked) {
+			index = (index + 1) & last;
+		}
+		return index;
+	}
+
+	private int indexOf(long key) {
+		int index = slotOf(key);
+		return frequencies[index] == 0 ? -1 : index;
 	}
-	
-	private void resize() {
-		KmerMapEntry[] tmp = new KmerMapEntry[(buckets.length * 3) / 2];
 
-		for (KmerMapEntry entry : buckets) {
-			if (entry != null) {
-				put(tmp, entry.getKey(), entry.getFrequency());
+	private void insert(int index, long key, long frequency) {
+		keys[index] = key;
+		frequencies[index] = frequency;
+		size++;
+		if (size > threshold) resize();
+	}
+
+	//Backward shift deletion, so that no tombstones are needed for linear probing
+	private void remove(int index) {
+		int last = keys.length - 1;
+		int next = index;
+		size--;
+
+		while (true) {
+			next = (next + 1) & last;
+			if (frequencies[next] == 0) break;
+
+			int home = KmerUtils.hash(keys[next] & mask) & last;
+			if (((next - home) & last) >= ((next - index) & last)) { //Entry can move back into the hole
+				keys[index] = keys[next];
+				frequencies[index] = frequencies[next];
+				index = next;
 			}
 		}
-		buckets = tmp;
-	}
-	
-	private int hash(long key, long seed){
-		int hash = 1;
-		int shift = 2;
-		int radix = 1 << shift;
-		long mask = radix - 1;
-		long maskedKey = key & seed;
-		
-		int counter = 1;
-		do{
-			hash = 31 * hash + (counter * (int)(maskedKey & mask));
-			maskedKey >>>= shift;
-			counter++;
-		}while (maskedKey != 0);
-
-		hash ^= (hash >>> 20) ^ (hash >>> 12);		
-		return hash ^ (hash >>> 7) ^ (hash >>> 4);
-	}
-	
-	private boolean isEqual(long s, long t, long seed){
-		return (s & seed) == (t & seed);
-	}
-	
+		frequencies[index] = 0;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		long[] oldFrequencies = frequencies;
+		allocate(keys.length << 1);
+
+		int last = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldFrequencies[i] == 0) continue;
+
+			int index = KmerUtils.hash(oldKeys[i] & mask) & last;
+			while (frequencies[index] != 0) index = (index + 1) & last;
+			keys[index] = oldKeys[i];
+			frequencies[index] = oldFrequencies[i];
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		frequencies = new long[capacity];
+		threshold = (int) (capacity * loadFactor);
+	}
+
+	private static int tableSize(int capacity, float loadFactor) {
+		int expected = (int) Math.ceil(Math.max(capacity, 2) / loadFactor);
+		return Math.max(2, Integer.highestOneBit(expected - 1) << 1);
+	}
+
 	public int getCapacity(){
-		return buckets.length;
+		return keys.length;
 	}
 
+	@Override
 	public int size(){
 		return this.size;
 	}
 
 	public void clear(){
-		buckets = new KmerMapEntry[1];
+		Arrays.fill(frequencies, 0);
+		size = 0;
 	}
-	
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("{");
-		for (KmerMapEntry entry : buckets) {
-			while (entry != null) {
-				sb.append(entry.getKey() + "=" + entry.getFrequency() + ",");
-				entry = entry.getNext();
-			}
+		for (int i = 0; i < keys.length; i++) {
+			if (frequencies[i] != 0) sb.append(keys[i] + "=" + frequencies[i] + ",");
 		}
 		sb.append("}");
 		return sb.toString();
 	}
-
-	private class KmerMapEntry implements Serializable{
-		private static final long serialVersionUID = 777L;
-		private long key;
-		private long frequency;
-		private KmerMapEntry next;
-		
-		public KmerMapEntry(KmerHashMap kmerHashMap, long key, long frequency) {
-			super();
-			this.key = key;
-			this.frequency = frequency;
-		}
-		
-		public long getKey() {
-			return key;
-		}
-		
-		public long getFrequency() {
-			return frequency;
-		}
-		
-		public void setValue(long frequency) {
-			this.frequency = frequency;
-		}
-
-		public KmerMapEntry getNext() {
-			return next;
-		}
-
-		public void setNext(KmerMapEntry next) {
-			this.next = next;
-		}
-
-		public boolean hasNext(){
-			return next != null;
-		}
-	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+package ie.gmit.bio.kmer;
+
+import java.util.Arrays;
+
+import ie.gmit.bio.kmer.metrics.KmerFrequency;
+
+/*
+ * The k-mer => frequency operations used by KmerDatabase, the indexes and the KmerMetrics
+ * implementations. Two k-mers are the same key if they are equal under the primary seed.
+ */
+public interface KmerMap {
+	long get(long key);
+	void put(long key, long frequency);
+	long increment(long key);
+	long[] keys();
+	int size();
+	
+	default KmerFrequency[] getSortedKmerFrequencies(int limit) {
+		return Arrays.stream(keys())
+				.mapToObj(k -> new KmerFrequency(k, get(k)))
+				.sorted((n, m) -> -Long.compare(n.frequency(), m.frequency()))
+				.limit(limit)
+				.toArray(KmerFrequency[]::new);
+	}
+}
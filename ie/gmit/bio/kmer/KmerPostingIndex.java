@@ -0,0 +1,136 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/*
+ * KmerPostingIndex
+ * --------------------
+ * An inverted index over all of the families in a database. The index numbers the
+ * families densely from zero, in the order of the maps it is built from, and the caller
+ * maps the ids back to whatever the families are. For each spaced seed, the seed
+ * projection of a k-mer maps to a posting list of the ids of the families that contain a
+ * k-mer with that projection, along with how many of their k-mers have it. A query is
+ * then scored against every family in one pass over its k-mers, with one probe per seed,
+ * by accumulating the postings into a double[] indexed by family id. The posting lists of
+ * a seed are stored back to back (CSR layout) in a pair of int[] arrays.
+ */
+public class KmerPostingIndex implements Serializable{
+	private static final long serialVersionUID = 777L;
+	private long[] seeds;
+	private int families;
+	private long[][] keys; //Null for a directly addressed seed
+	private int[][] starts;
+	private int[][] lengths;
+	private int[][] postingFamilies;
+	private int[][] postingCounts;
+
+	//The id of a family is its position in the array. Null entries are allowed.
+	public KmerPostingIndex(long[] seeds, KmerMap[] maps) {
+		super();
+		this.seeds = seeds;
+		this.families = maps.length;
+		keys = new long[seeds.length][];
+		starts = new int[seeds.length][];
+		lengths = new int[seeds.length][];
+		postingFamilies = new int[seeds.length][];
+		postingCounts = new int[seeds.length][];
+
+		long[][] kmers = new long[maps.length][];
+		int total = 0;
+		for (int f = 0; f < maps.length; f++) {
+			kmers[f] = maps[f] == null ? new long[0] : maps[f].keys();
+			total += kmers[f].length;
+		}
+
+		for (int s = 0; s < seeds.length; s++) {
+			build(s, kmers, total);
+		}
+	}
+
+	private void build(int s, long[][] kmers, int total) {
+		int capacity = KmerTables.getCapacity(seeds[s], total);
+		if (!KmerTables.isDirect(seeds[s], total)) keys[s] = new long[capacity];
+		starts[s] = new int[capacity];
+		lengths[s] = new int[capacity];
+
+		/*
+		 * Chain the postings of each slot through a linked list held in primitive arrays.
+		 * The families are visited in order, so a repeated (projection, family) pair is
+		 * always at the head of its list.
+		 */
+		int[] head = new int[capacity];
+		Arrays.fill(head, -1);
+		int[] family = new int[total];
+		int[] count = new int[total];
+		int[] next = new int[total];
+		int entries = 0;
+
+		for (int f = 0; f < kmers.length; f++) {
+			for (long kmer : kmers[f]) {
+				int index = slotOf(s, kmer);
+				if (keys[s] != null) keys[s][index] = KmerUtils.project(kmer, seeds[s]);
+
+				if (head[index] >= 0 && family[head[index]] == f) {
+					count[head[index]]++;
+				}else {
+					family[entries] = f;
+					count[entries] = 1;
+					next[entries] = head[index];
+					head[index] = entries;
+					lengths[s][index]++;
+					entries++;
+				}
+			}
+		}
+
+		//Flatten the lists into CSR order, with the family ids of each list ascending
+		postingFamilies[s] = new int[entries];
+		postingCounts[s] = new int[entries];
+		int offset = 0;
+		for (int index = 0; index < capacity; index++) {
+			if (lengths[s][index] == 0) continue;
+
+			starts[s][index] = offset;
+			offset += lengths[s][index];
+			int position = offset;
+			for (int e = head[index]; e >= 0; e = next[e]) {
+				position--;
+				postingFamilies[s][position] = family[e];
+				postingCounts[s][position] = count[e];
+			}
+		}
+	}
+
+	//Adds the number of (family k-mer, seed) pairs that match the k-mer to the score of each family
+	public void accumulate(long kmer, double[] scores) {
+		for (int s = 0; s < seeds.length; s++) {
+			int index = slotOf(s, kmer);
+			int start = starts[s][index];
+			int end = start + lengths[s][index];
+			for (int p = start; p < end; p++) {
+				scores[postingFamilies[s][p]] += postingCounts[s][p];
+			}
+		}
+	}
+
+	public double[] getScores(long[] kmers) {
+		double[] scores = new double[families];
+		for (long kmer : kmers) {
+			accumulate(kmer, scores);
+		}
+		return scores;
+	}
+
+	private int slotOf(int seed, long kmer) {
+		return KmerTables.slotOf(seeds[seed], keys[seed], lengths[seed], kmer);
+	}
+
+	public long[] getSeeds() {
+		return seeds;
+	}
+
+	public int getFamilyCount() {
+		return families;
+	}
+}
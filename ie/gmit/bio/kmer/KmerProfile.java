@@ -0,0 +1,101 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+
+/*
+ * KmerProfile
+ * --------------------
+ * The k-mers of a map ranked by descending frequency, held as a pair of parallel long[]
+ * arrays rather than an array of KmerFrequency records. K-mers with the same frequency
+ * keep the order in which keys() returned them, so the ranking is the same as the one
+ * from getSortedKmerFrequencies(). Only the top limit k-mers are selected, with a bounded
+ * heap, so taking the top N of a large query does not sort all of it.
+ */
+public class KmerProfile implements Serializable{
+	private static final long serialVersionUID = 777L;
+	private long[] kmers;
+	private long[] frequencies;
+
+	public KmerProfile(KmerMap map) {
+		this(map, map.size());
+	}
+
+	public KmerProfile(KmerMap map, int limit) {
+		super();
+		long[] keys = map.keys();
+		long[] counts = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			counts[i] = map.get(keys[i]);
+		}
+		rank(keys, counts, Math.max(0, Math.min(limit, keys.length)));
+	}
+
+	/*
+	 * Keeps the best limit positions in a min-heap with the worst of them at the root, then
+	 * empties the heap from the back of the arrays. Position i is ranked above j if it has
+	 * a higher frequency, or the same frequency and i < j.
+	 */
+	private void rank(long[] keys, long[] counts, int limit) {
+		int[] heap = new int[limit];
+		int size = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (size < limit) {
+				heap[size] = i;
+				siftUp(heap, size++, counts);
+			}else if (limit > 0 && before(i, heap[0], counts)) {
+				heap[0] = i;
+				siftDown(heap, 0, size, counts);
+			}
+		}
+
+		kmers = new long[limit];
+		frequencies = new long[limit];
+		while (size > 0) {
+			int worst = heap[0];
+			heap[0] = heap[--size];
+			siftDown(heap, 0, size, counts);
+			kmers[size] = keys[worst];
+			frequencies[size] = counts[worst];
+		}
+	}
+
+	private static boolean before(int i, int j, long[] counts) {
+		return counts[i] > counts[j] || (counts[i] == counts[j] && i < j);
+	}
+
+	private static void siftUp(int[] heap, int index, long[] counts) {
+		int item = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (!before(heap[parent], item, counts)) break;
+			heap[index] = heap[parent];
+			index = parent;
+		}
+		heap[index] = item;
+	}
+
+	private static void siftDown(int[] heap, int index, int size, long[] counts) {
+		int item = heap[index];
+		while (true) {
+			int child = (index << 1) + 1;
+			if (child >= size) break;
+			if (child + 1 < size && before(heap[child], heap[child + 1], counts)) child++;
+			if (!before(item, heap[child], counts)) break;
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = item;
+	}
+
+	public long getKmer(int rank) {
+		return kmers[rank];
+	}
+
+	public long getFrequency(int rank) {
+		return frequencies[rank];
+	}
+
+	public int size() {
+		return kmers.length;
+	}
+}
@@ -0,0 +1,79 @@
+package ie.gmit.bio.kmer;
+
+import java.util.Arrays;
+
+import ie.gmit.bio.AntimicrobialPeptide;
+
+/*
+ * KmerQueryContext
+ * --------------------
+ * The reusable state of one classification: a primitive buffer for the encoded k-mers,
+ * a clearable count table, the distinct k-mers in the order they were first seen and a
+ * score per family, indexed by the database's own family ids. Once the buffers have grown to the longest
+ * sequence, loading and classifying a query allocates nothing. A context is not
+ * thread-safe, so keep one per thread.
+ */
+public class KmerQueryContext {
+	private static final int FAMILIES = AntimicrobialPeptide.values().length;
+	private AminoAcidAlphabet alphabet;
+	private KmerHashMap query;
+	private long[] encoded = new long[64];
+	private long[] kmers = new long[64]; //Distinct under the primary seed
+	private int count;
+	private int skipped;
+	private double[] scores = new double[FAMILIES];
+	private int[] order = new int[FAMILIES];
+
+	public KmerQueryContext(long[] seeds, AminoAcidAlphabet alphabet) {
+		this(64, seeds, alphabet);
+	}
+
+	public KmerQueryContext(int capacity, long[] seeds, AminoAcidAlphabet alphabet) {
+		super();
+		this.alphabet = alphabet;
+		this.query = new KmerHashMap(capacity, seeds, 0.75f);
+	}
+
+	//Replaces the query with the k-mers of the sequence
+	public void load(CharSequence sequence) {
+		query.clear();
+		count = 0;
+
+		int length = KmerUtils.getKmerCount(sequence.length(), alphabet);
+		if (encoded.length < length) encoded = new long[Math.max(length, encoded.length << 1)];
+		int total = KmerUtils.encode(sequence, alphabet, encoded);
+		skipped = length - total;
+		for (int i = 0; i < total; i++) {
+			if (query.increment(encoded[i]) == 1) {
+				if (count == kmers.length) kmers = Arrays.copyOf(kmers, count << 1);
+				kmers[count++] = encoded[i];
+			}
+		}
+	}
+
+	public KmerHashMap getQuery() {
+		return query;
+	}
+
+	//The distinct k-mers of the query. Only the first getKmerCount() are valid.
+	public long[] getKmers() {
+		return kmers;
+	}
+
+	public int getKmerCount() {
+		return count;
+	}
+
+	//The number of k-mers of the last sequence that spanned a residue outside the alphabet
+	public int getSkippedKmerCount() {
+		return skipped;
+	}
+
+	double[] getScores() {
+		return scores;
+	}
+
+	int[] getOrder() {
+		return order;
+	}
+}
@@ -0,0 +1,58 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+
+/*
+ * KmerRankIndex
+ * --------------------
+ * Maps the seed projection of a k-mer to the best (lowest) rank in a KmerProfile of a
+ * k-mer with that projection, with one table per spaced seed. The best rank of a query
+ * over all of the seeds is then the first rank at which it matches the profile under any
+ * seed, which is what a linear scan of the ranks would find, in one probe per seed. As the
+ * index covers the whole profile, it answers for any top N: a rank of N or more is a miss.
+ * The tables are sized by KmerTables, as in KmerSeedIndex.
+ */
+public class KmerRankIndex implements Serializable{
+	private static final long serialVersionUID = 777L;
+	private long[] seeds;
+	private long[][] keys; //Null for a directly addressed seed
+	private int[][] ranks; //Rank + 1, so that zero is an empty slot
+
+	public KmerRankIndex(long[] seeds, KmerProfile profile) {
+		super();
+		this.seeds = seeds;
+		keys = new long[seeds.length][];
+		ranks = new int[seeds.length][];
+
+		for (int s = 0; s < seeds.length; s++) {
+			int capacity = KmerTables.getCapacity(seeds[s], profile.size());
+			if (!KmerTables.isDirect(seeds[s], profile.size())) keys[s] = new long[capacity];
+			ranks[s] = new int[capacity];
+
+			for (int rank = 0; rank < profile.size(); rank++) { //In rank order, so the first one in is the best
+				int index = slotOf(s, profile.getKmer(rank));
+				if (ranks[s][index] != 0) continue;
+				if (keys[s] != null) keys[s][index] = KmerUtils.project(profile.getKmer(rank), seeds[s]);
+				ranks[s][index] = rank + 1;
+			}
+		}
+	}
+
+	//The first rank that matches the k-mer under any seed, or Integer.MAX_VALUE if there is none
+	public int getRank(long kmer) {
+		int best = Integer.MAX_VALUE;
+		for (int s = 0; s < seeds.length; s++) {
+			int rank = ranks[s][slotOf(s, kmer)];
+			if (rank != 0 && rank - 1 < best) best = rank - 1;
+		}
+		return best;
+	}
+
+	private int slotOf(int seed, long kmer) {
+		return KmerTables.slotOf(seeds[seed], keys[seed], ranks[seed], kmer);
+	}
+
+	public long[] getSeeds() {
+		return seeds;
+	}
+}
@@ -20,10 +20,19 @@ public class KmerRunner {
 			System.out.print(" " + map.size() + " k-mers generated. ");
 			System.out.println("Done.");
 
-			db.add(amp, map); 
+			db.add(amp, map.freeze()); 
 		}
 		
-		KmerUtils.saveKmerDatabase(db, "./kmer-dbs/kmers-" + alphabet.name() + ".db");
+		KmerDatabaseFile.write(db, alphabet, "./kmer-dbs/kmers-" + alphabet.name() + ".kdb"); //Open with KmerDatabaseFile.open()
+		
+		if (args.length > 0) { //Stream mode: classify each record of the FASTA file on its own
+			KmerStreamClassifier stream = new KmerStreamClassifier(db, alphabet);
+			var done = stream.consume(r -> System.out.println(r.header() + "\t" 
+					+ (r.results().length > 0 ? r.results()[0].amp() + "=>" + r.results()[0].metric() : AntimicrobialPeptide.Unknown)));
+			stream.publish(args[0]);
+			done.get();
+			return;
+		}
 		
 		KmerHashMap map = new KmerHashMap(seeds);
 		KmerFastaParser parser = new KmerFastaParser(SequenceType.PROTEIN, alphabet, map);
@@ -0,0 +1,54 @@
+package ie.gmit.bio.kmer;
+
+import java.nio.LongBuffer;
+
+/*
+ * KmerSearch
+ * --------------------
+ * The lookup shared by the sorted k-mer maps. The keys are sorted by their value under the
+ * primary seed, so a masked k-mer is found by an interpolation search, which falls back to
+ * a binary search after a few probes in case the keys are unevenly spread. FrozenKmerMap
+ * searches a buffer over its array and MappedKmerMap a buffer over its file section.
+ */
+final class KmerSearch {
+	private static final int INTERPOLATION_STEPS = 4;
+
+	private KmerSearch() {
+		super();
+	}
+
+	//Returns the index of the masked key in the first limit() keys, or -1
+	static int indexOf(LongBuffer keys, long mask, long target) {
+		int low = 0;
+		int high = keys.limit() - 1;
+
+		for (int step = 0; step < INTERPOLATION_STEPS && low <= high; step++) {
+			long lowKey = keys.get(low) & mask;
+			long highKey = keys.get(high) & mask;
+			if (target < lowKey || target > highKey) return -1;
+			if (lowKey == highKey) return lowKey == target ? low : -1;
+
+			int probe = low + (int) (((double) target - lowKey) / ((double) highKey - lowKey) * (high - low));
+			probe = Math.min(Math.max(probe, low), high);
+			long probeKey = keys.get(probe) & mask;
+			if (probeKey == target) return probe;
+			if (probeKey < target) {
+				low = probe + 1;
+			}else {
+				high = probe - 1;
+			}
+		}
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleKey = keys.get(middle) & mask;
+			if (middleKey == target) return middle;
+			if (middleKey < target) {
+				low = middle + 1;
+			}else {
+				high = middle - 1;
+			}
+		}
+		return -1;
+	}
+}
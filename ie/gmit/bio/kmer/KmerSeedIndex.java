@@ -0,0 +1,140 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+
+/*
+ * KmerSeedIndex
+ * --------------------
+ * A read-only index over a finished KmerMap with one table per spaced seed. Each
+ * table is keyed by the seed projection of a k-mer (the bits under the seed with the
+ * don't care positions squeezed out) and holds the number of subject k-mers with that
+ * projection and their total frequency. A query k-mer hits a subject k-mer under a seed
+ * when (query & seed) == (subject & seed), exactly as before, but a lookup is now one
+ * probe per seed. KmerTables decides which seeds are addressed directly. The k-mers of
+ * the map ranked by frequency are built on first use, for the rank based metrics.
+ */
+public class KmerSeedIndex implements Serializable{
+	private static final long serialVersionUID = 777L;
+	private long[] seeds;
+	private KmerMap map;
+	private long[][] keys; //Null for a directly addressed seed
+	private int[][] matches;
+	private long[][] frequencies;
+	private int[] maxMatches;
+	private transient volatile KmerProfile profile; //Only built for the rank based metrics, as is the rank index
+	private transient volatile KmerRankIndex ranks;
+
+	public KmerSeedIndex(long[] seeds, KmerMap map) {
+		super();
+		this.seeds = seeds;
+		this.map = map;
+		keys = new long[seeds.length][];
+		matches = new int[seeds.length][];
+		frequencies = new long[seeds.length][];
+		maxMatches = new int[seeds.length];
+
+		long[] kmers = map.keys();
+		long[] counts = new long[kmers.length]; //Looked up once, rather than once per seed
+		for (int i = 0; i < kmers.length; i++) {
+			counts[i] = map.get(kmers[i]);
+		}
+		for (int s = 0; s < seeds.length; s++) {
+			int capacity = KmerTables.getCapacity(seeds[s], kmers.length);
+			if (!KmerTables.isDirect(seeds[s], kmers.length)) keys[s] = new long[capacity];
+			matches[s] = new int[capacity];
+			frequencies[s] = new long[capacity];
+
+			for (int i = 0; i < kmers.length; i++) {
+				int index = slotOf(s, kmers[i]);
+				if (keys[s] != null) keys[s][index] = KmerUtils.project(kmers[i], seeds[s]);
+				matches[s][index]++;
+				frequencies[s][index] += counts[i];
+				maxMatches[s] = Math.max(maxMatches[s], matches[s][index]);
+			}
+		}
+	}
+
+	//The number of subject k-mers that are equal to the query under the seed
+	public int getMatches(int seed, long kmer) {
+		return matches[seed][slotOf(seed, kmer)];
+	}
+
+	//The total frequency of the subject k-mers that are equal to the query under the seed
+	public long getFrequency(int seed, long kmer) {
+		return frequencies[seed][slotOf(seed, kmer)];
+	}
+
+	//The number of (subject k-mer, seed) pairs that match the query
+	public int getMatches(long kmer) {
+		int total = 0;
+		for (int s = 0; s < seeds.length; s++) {
+			total += matches[s][slotOf(s, kmer)];
+		}
+		return total;
+	}
+
+	//The most subject k-mers that any one query k-mer can match under the seed, or under all of the seeds
+	public int getMaxMatches(int seed) {
+		return maxMatches[seed];
+	}
+
+	public int getMaxMatches() {
+		int total = 0;
+		for (int max : maxMatches) {
+			total += max;
+		}
+		return total;
+	}
+
+	public boolean contains(long kmer) {
+		for (int s = 0; s < seeds.length; s++) {
+			if (matches[s][slotOf(s, kmer)] != 0) return true;
+		}
+		return false;
+	}
+
+	private int slotOf(int seed, long kmer) {
+		return KmerTables.slotOf(seeds[seed], keys[seed], matches[seed], kmer);
+	}
+
+	public long[] getSeeds() {
+		return seeds;
+	}
+
+	//All of the subject k-mers by descending frequency. The top N are the first N ranks.
+	public KmerProfile getProfile() {
+		KmerProfile sorted = profile;
+		if (sorted == null) {
+			synchronized (this) {
+				sorted = profile;
+				if (sorted == null) {
+					sorted = new KmerProfile(map);
+					profile = sorted;
+				}
+			}
+		}
+		return sorted;
+	}
+
+	public KmerRankIndex getRankIndex() {
+		KmerRankIndex index = ranks;
+		if (index == null) {
+			synchronized (this) {
+				index = ranks;
+				if (index == null) {
+					index = new KmerRankIndex(seeds, getProfile());
+					ranks = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	public KmerMap getKmerMap() {
+		return map;
+	}
+
+	public int size() {
+		return map.size();
+	}
+}
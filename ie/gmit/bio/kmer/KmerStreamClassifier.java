@@ -0,0 +1,74 @@
+package ie.gmit.bio.kmer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import ie.gmit.bio.MappedFastaParser;
+import ie.gmit.bio.SequenceType;
+
+/*
+ * KmerStreamClassifier
+ * --------------------
+ * Classifies each record of a FASTA file on its own and publishes the results, one
+ * ClassifiedSequence per record, to any number of Flow subscribers. Each subscriber has
+ * a bounded buffer and, when one of them is full, publish() blocks until the subscriber
+ * has caught up, so a slow consumer throttles the reader rather than the results piling
+ * up in memory. The records are read, encoded and classified one at a time on the thread
+ * that calls publish(), through a single KmerQueryContext. Subscribe before publishing,
+ * as the publisher is closed once the file has been read and can't be reused.
+ */
+public class KmerStreamClassifier implements Flow.Publisher<ClassifiedSequence>{
+	private KmerDatabase db;
+	private AminoAcidAlphabet alphabet;
+	private SubmissionPublisher<ClassifiedSequence> publisher;
+
+	public KmerStreamClassifier(KmerDatabase db, AminoAcidAlphabet alphabet) {
+		this(db, alphabet, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+	}
+
+	//The subscribers are called from the executor, with up to bufferSize results buffered for each of them
+	public KmerStreamClassifier(KmerDatabase db, AminoAcidAlphabet alphabet, Executor executor, int bufferSize) {
+		super();
+		this.db = db;
+		this.alphabet = alphabet;
+		this.publisher = new SubmissionPublisher<>(executor, bufferSize);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ClassifiedSequence> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+
+	//Subscribes a consumer. The future completes once it has been given every result.
+	public CompletableFuture<Void> consume(Consumer<? super ClassifiedSequence> consumer) {
+		return publisher.consume(consumer);
+	}
+
+	//Reads and publishes the whole file, then completes the subscribers
+	public void publish(String file) throws Exception {
+		KmerQueryContext context = new KmerQueryContext(db.getSeeds(), alphabet);
+		List<ClassifierResult> results = new ArrayList<>();
+		try {
+			new MappedFastaParser(SequenceType.PROTEIN) {
+				@Override
+				public void process() throws Exception {
+					context.load(getSequence());
+					results.clear();
+					db.classify(context, (amp, metric) -> results.add(new ClassifierResult(amp, metric)));
+					publisher.submit(new ClassifiedSequence(getHeader().toString(), 
+							results.toArray(new ClassifierResult[results.size()]))); //Blocks while a subscriber is full
+				}
+			}.parse(file);
+		}catch (Exception e) {
+			publisher.closeExceptionally(e);
+			throw e;
+		}
+		publisher.close();
+	}
+
+	public int getSubscriberCount() {
+		return publisher.getNumberOfSubscribers();
+	}
+}
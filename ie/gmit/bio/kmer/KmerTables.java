@@ -0,0 +1,51 @@
+package ie.gmit.bio.kmer;
+
+/*
+ * KmerTables
+ * --------------------
+ * Sizes and probes the per-seed tables of the k-mer indexes. The projections of a seed
+ * are addressed directly, with a slot for every possible projection, only when that table
+ * is at most DIRECT_FACTOR times the number of k-mers that go in it. Otherwise, e.g. for a
+ * family of a few hundred k-mers under a seed of 20 match bits, they are hashed into a
+ * power of two table with a load factor of at most 0.75 and linear probing.
+ */
+final class KmerTables {
+	private static final int DIRECT_BITS = 20;
+	private static final int DIRECT_FACTOR = 4;
+
+	private KmerTables() {
+		super();
+	}
+
+	//True if the projections of the seed index the table directly, for a table of this many k-mers
+	static boolean isDirect(long seed, int size) {
+		int bits = Long.bitCount(seed);
+		return bits <= DIRECT_BITS && (1L << bits) <= (long) DIRECT_FACTOR * size;
+	}
+
+	static int getCapacity(long seed, int size) {
+		return isDirect(seed, size) ? 1 << Long.bitCount(seed) : tableSize(size);
+	}
+
+	/*
+	 * Returns the slot for the projection of the k-mer under the seed, or the empty slot
+	 * where it belongs. keys is null for a directly addressed seed, and a hashed slot is
+	 * empty while its entry in used, e.g. its count, is zero.
+	 */
+	static int slotOf(long seed, long[] keys, int[] used, long kmer) {
+		long projected = KmerUtils.project(kmer, seed);
+		if (keys == null) return (int) projected;
+
+		int last = keys.length - 1;
+		int index = KmerUtils.hash(projected) & last;
+		while (used[index] != 0 && keys[index] != projected) {
+			index = (index + 1) & last;
+		}
+		return index;
+	}
+
+	private static int tableSize(int size) { //Power of two with a load factor of at most 0.75
+		int expected = (int) Math.ceil(Math.max(size, 2) / 0.75d);
+		return Integer.highestOneBit(expected - 1) << 1;
+	}
+}
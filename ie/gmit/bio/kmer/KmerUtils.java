@@ -2,6 +2,7 @@ package ie.gmit.bio.kmer;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.LongConsumer;
 
 public class KmerUtils {
 	private static AminoAcidEncoder encoder = AminoAcidEncoder.getInstance();
@@ -15,36 +16,80 @@ public class KmerUtils {
 	};
 	
 	public static long[] encode(CharSequence sequence, AminoAcidAlphabet alphabet) {
-		AminoAcidEncoder encoder = AminoAcidEncoder.getInstance();
-
-		int shift = (int) Math.ceil(Math.log(alphabet.getSymbolsCount()) / Math.log(2));
-		int blockSize = (int) Math.floor(64.0d / shift);
-		List<Long> kmers = new ArrayList<>();
-
-		StringBuilder buffer = new StringBuilder(sequence);
-		long index = 0; //Current index of the k-mer
+		long[] kmers = new long[getKmerCount(sequence.length(), alphabet)];
+		int count = encode(sequence, alphabet, kmers);
+		return count == kmers.length ? kmers : Arrays.copyOf(kmers, count);
+	}
+	
+	/*
+	 * Writes the k-mers of the sequence into the array, which must hold getKmerCount() of them,
+	 * and returns how many were written. This is fewer when k-mers were skipped.
+	 */
+	public static int encode(CharSequence sequence, AminoAcidAlphabet alphabet, long[] kmers) {
+		return encode(sequence, alphabet, kmers, null);
+	}
+	
+	public static int encode(CharSequence sequence, AminoAcidAlphabet alphabet, LongConsumer consumer) {
+		return encode(sequence, alphabet, null, consumer);
+	}
+	
+	/*
+	 * Rolls a window of blockSize symbols over the sequence in one pass. Each residue is
+	 * looked up in the flat AminoAcidTable of the alphabet and shifted into the packed k-mer,
+	 * and the symbols that fall out of the window are masked off, so nothing is allocated
+	 * per residue. A sequence shorter than the window gives a single (short) k-mer.
+	 * 
+	 * Any k-mer that spans a residue outside the alphabet (X, B, Z, U, O etc.) is skipped
+	 * rather than OR'ing the INVALID marker into it, by keeping a count of the valid
+	 * residues at the end of the window. The number skipped is getKmerCount() less the
+	 * number returned, which KmerQueryContext and MultiAlphabetEncoder keep per sequence.
+	 */
+	private static int encode(CharSequence sequence, AminoAcidAlphabet alphabet, long[] kmers, LongConsumer consumer) {
+		int shift = getShift(alphabet);
+		int blockSize = getBlockSize(alphabet);
+		long mask = shift * blockSize == 64 ? -1L : (1L << (shift * blockSize)) - 1;
+		byte[] symbols = encoder.getTable(alphabet).getTable();
+		int length = sequence.length();
+		int window = Math.min(blockSize, length);
+		int valid = 0;
+		int count = 0;
 		long packed = 0;
-		int symbol = 0;
-
-		do{
-			index++;
-			if (index == 1){ //At the start of a sequence
-				if (blockSize >= buffer.length()) {
-					packed = getKmerAsLong(buffer.toString(), shift,alphabet); //Convert the sequence of k characters into a long
+		
+		for (int i = 0; i < length; i++) {
+			char c = sequence.charAt(i);
+			int symbol = c < symbols.length ? symbols[c] : AminoAcidTable.INVALID;
+			if (symbol == AminoAcidTable.INVALID) {
+				valid = 0;
+				continue;
+			}
+			
+			packed = ((packed << shift) | symbol) & mask;
+			valid++;
+			if (valid >= window) {
+				if (kmers != null) {
+					kmers[count] = packed;
 				}else {
-					packed = getKmerAsLong(buffer.substring(0, blockSize), shift,alphabet); //Convert the sequence of k characters into a long
-					buffer.delete(0, blockSize); //Remove the k-mer from the buffer
+					consumer.accept(packed);
 				}
-			}else{	
-				symbol = encoder.encode(Character.toUpperCase(buffer.charAt(0)), alphabet);
-				packed <<= shift; // Left shift encoding bits
-				packed |= symbol;
-				buffer.delete(0, 1); //Delete next character from buffer
+				count++;
 			}
-			kmers.add(packed);
-		}while (buffer.length() >= blockSize);
-
-		return kmers.stream().mapToLong(Long::longValue).toArray();
+		}
+		return count;
+	}
+	
+	public static int getKmerCount(int length, AminoAcidAlphabet alphabet) {
+		if (length == 0) return 0;
+		return Math.max(length - getBlockSize(alphabet) + 1, 1);
+	}
+	
+	//The number of bits used to encode a symbol of the alphabet
+	public static int getShift(AminoAcidAlphabet alphabet) {
+		return (int) Math.ceil(Math.log(alphabet.getSymbolsCount()) / Math.log(2));
+	}
+	
+	//The number of symbols in a k-mer packed into a long
+	public static int getBlockSize(AminoAcidAlphabet alphabet) {
+		return 64 / getShift(alphabet);
 	}
 	
 	public static long getKmerAsLong(String kmer, int shift, AminoAcidAlphabet alphabet) {
@@ -59,8 +104,52 @@ public class KmerUtils {
 		return packed;
 	}
 
+	//Finalising mix of MurmurHash3. Spreads the low entropy bits of a packed k-mer across the hash
+	public static int hash(long key) {
+		return (int) mix(key);
+	}
+
+	//As hash(), but keeping all 64 bits
+	public static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	//Squeezes the bits of a k-mer under a seed into the low order bits, dropping the don't care positions
+	public static long project(long kmer, long seed) {
+		long projected = 0;
+		int bits = 0;
+		while (seed != 0) { //One iteration per run of match bits in the seed
+			int start = Long.numberOfTrailingZeros(seed);
+			int width = Long.numberOfTrailingZeros(~(seed >>> start));
+			long run = width == 64 ? -1L : (1L << width) - 1;
+			projected |= ((kmer >>> start) & run) << bits;
+			bits += width;
+			seed &= ~(run << start);
+		}
+		return projected;
+	}
+
+	//The inverse of project(). Spreads the low order bits back out over the positions of the seed.
+	public static long deposit(long projected, long seed) {
+		long kmer = 0;
+		while (seed != 0) {
+			int start = Long.numberOfTrailingZeros(seed);
+			int width = Long.numberOfTrailingZeros(~(seed >>> start));
+			long run = width == 64 ? -1L : (1L << width) - 1;
+			kmer |= (projected & run) << start;
+			projected = width == 64 ? 0 : projected >>> width;
+			seed &= ~(run << start);
+		}
+		return kmer;
+	}
+
 	public static long encodeSeed(String seed, AminoAcidAlphabet alphabet) throws Exception{
-		int shift = (int) Math.ceil(Math.log(alphabet.getSymbolsCount()) / Math.log(2));
+		int shift = getShift(alphabet);
 		int matchBits = Math.max((int) Math.pow(shift, 2.0) - 1, 1);
 		if (seed.length() > 64/shift) throw new Exception("Seed too long for alphabet.");
 		
@@ -92,14 +181,15 @@ public class KmerUtils {
 	}
 	
 	
+	//Java serialisation of the whole database. KmerDatabaseFile is much faster to open.
 	public static void saveKmerDatabase(KmerDatabase db, String name) throws Exception{
-		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(name)));
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(new File(name))));
 		out.writeObject(db);
 		out.close();
 	}
 	
 	public static KmerDatabase loadKmerDatabase(String name) throws Exception{
-		ObjectInputStream in = new ObjectInputStream(new FileInputStream(new File(name)));
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(new File(name))));
 		KmerDatabase db = (KmerDatabase) in.readObject();
 		in.close();
 		return db;
@@ -0,0 +1,89 @@
+package ie.gmit.bio.kmer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+
+/*
+ * LazyKmerMap
+ * --------------------
+ * Stands in for a family map that has not been loaded yet. The map is loaded on the first
+ * call that needs its k-mers, and can be dropped again with unload(), after which it is
+ * reloaded when next used. If the size is known up front, asking for it doesn't cause a
+ * load. Otherwise pass a negative size.
+ * KmerDatabase unloads the families that fall out of its resident limit.
+ */
+public class LazyKmerMap implements KmerMap, Serializable{
+	private static final long serialVersionUID = 777L;
+	private transient Loader loader;
+	private transient volatile KmerMap map;
+	private int size;
+
+	@FunctionalInterface
+	public interface Loader {
+		KmerMap load() throws IOException;
+	}
+
+	public LazyKmerMap(Loader loader, int size) {
+		super();
+		this.loader = loader;
+		this.size = size;
+	}
+
+	public KmerMap getMap() {
+		KmerMap loaded = map;
+		if (loaded == null) {
+			synchronized (this) {
+				loaded = map;
+				if (loaded == null) {
+					try {
+						loaded = loader.load();
+					}catch (IOException e) {
+						throw new UncheckedIOException("Unable to load k-mer map.", e);
+					}
+					map = loaded;
+				}
+			}
+		}
+		return loaded;
+	}
+
+	public void unload() {
+		map = null;
+	}
+
+	public boolean isLoaded() {
+		return map != null;
+	}
+
+	@Override
+	public long get(long key) {
+		return getMap().get(key);
+	}
+
+	@Override
+	public void put(long key, long frequency) {
+		getMap().put(key, frequency);
+	}
+
+	@Override
+	public long increment(long key) {
+		return getMap().increment(key);
+	}
+
+	@Override
+	public long[] keys() {
+		return getMap().keys();
+	}
+
+	@Override
+	public int size() {
+		KmerMap loaded = map;
+		if (loaded == null && size < 0) loaded = getMap();
+		return loaded == null ? size : loaded.size();
+	}
+
+	private Object writeReplace() { //Serialised as the map itself
+		return getMap();
+	}
+}
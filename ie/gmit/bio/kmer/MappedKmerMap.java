@@ -0,0 +1,71 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+import java.nio.LongBuffer;
+
+/*
+ * MappedKmerMap
+ * --------------------
+ * A read-only KmerMap over a family section of a KmerDatabaseFile. The section is the
+ * same sorted keys and parallel frequencies as a FrozenKmerMap, but they are read in
+ * place from the memory-mapped file, so opening a family costs nothing until its k-mers
+ * are looked up. If the map is serialised, it is written as a FrozenKmerMap copy.
+ */
+public class MappedKmerMap implements KmerMap, Serializable{
+	private static final long serialVersionUID = 777L;
+	private long mask;
+	private transient LongBuffer keys; //Sorted by key & mask
+	private transient LongBuffer frequencies;
+	private int size;
+
+	MappedKmerMap(long mask, LongBuffer keys, LongBuffer frequencies) {
+		super();
+		this.mask = mask;
+		this.keys = keys;
+		this.frequencies = frequencies;
+		this.size = keys.limit();
+	}
+
+	@Override
+	public long get(long key) {
+		int index = KmerSearch.indexOf(keys, mask, key & mask);
+		return index < 0 ? 0 : frequencies.get(index);
+	}
+
+	@Override
+	public void put(long key, long frequency) {
+		throw new UnsupportedOperationException("A mapped k-mer map cannot be changed.");
+	}
+
+	@Override
+	public long increment(long key) {
+		throw new UnsupportedOperationException("A mapped k-mer map cannot be changed.");
+	}
+
+	//In ascending order of key & mask
+	@Override
+	public long[] keys() {
+		long[] copy = new long[size];
+		keys.get(0, copy);
+		return copy;
+	}
+
+	public long[] getFrequencies() {
+		long[] copy = new long[size];
+		frequencies.get(0, copy);
+		return copy;
+	}
+
+	public long getMask() {
+		return mask;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private Object writeReplace() {
+		return new FrozenKmerMap(mask, keys(), getFrequencies());
+	}
+}
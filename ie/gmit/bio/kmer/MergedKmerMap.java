@@ -0,0 +1,107 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Serializable;
+
+/*
+ * MergedKmerMap
+ * --------------------
+ * A read-only view of a family that is split over several maps, e.g. the base section of
+ * a KmerDatabaseFile and the delta segments appended to it since. The frequency of a
+ * k-mer is the sum of its frequencies in the parts, and the keys are the union of the
+ * parts. The keys() of each part must be sorted by their value under the primary seed,
+ * as those of a FrozenKmerMap or MappedKmerMap are, so the union is a single merge. Where
+ * a k-mer is in more than one part, the key of the first part is the one that is kept.
+ */
+public class MergedKmerMap implements KmerMap, Serializable{
+	private static final long serialVersionUID = 777L;
+	private long mask;
+	private KmerMap[] parts;
+	private int size;
+
+	public MergedKmerMap(long mask, KmerMap... parts) {
+		super();
+		this.mask = mask;
+		this.parts = parts;
+		this.size = merge(null);
+	}
+
+	@Override
+	public long get(long key) {
+		long frequency = 0;
+		for (KmerMap part : parts) {
+			frequency += part.get(key);
+		}
+		return frequency;
+	}
+
+	@Override
+	public void put(long key, long frequency) {
+		throw new UnsupportedOperationException("A merged k-mer map cannot be changed.");
+	}
+
+	@Override
+	public long increment(long key) {
+		throw new UnsupportedOperationException("A merged k-mer map cannot be changed.");
+	}
+
+	//In ascending order of key & mask
+	@Override
+	public long[] keys() {
+		long[] keys = new long[size];
+		merge(keys);
+		return keys;
+	}
+
+	public long[] getFrequencies() {
+		long[] keys = keys();
+		long[] frequencies = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			frequencies[i] = get(keys[i]);
+		}
+		return frequencies;
+	}
+
+	//Merges the sorted keys of the parts into the array, if there is one, and returns the number of distinct keys
+	private int merge(long[] keys) {
+		long[][] sorted = new long[parts.length][];
+		int[] next = new int[parts.length];
+		for (int p = 0; p < parts.length; p++) {
+			sorted[p] = parts[p].keys();
+		}
+
+		int count = 0;
+		while (true) {
+			int first = -1;
+			long lowest = 0;
+			for (int p = 0; p < parts.length; p++) {
+				if (next[p] == sorted[p].length) continue;
+				long masked = sorted[p][next[p]] & mask;
+				if (first < 0 || masked < lowest) { //The earliest part wins a tie
+					first = p;
+					lowest = masked;
+				}
+			}
+			if (first < 0) break;
+
+			if (keys != null) keys[count] = sorted[first][next[first]];
+			count++;
+			for (int p = first; p < parts.length; p++) { //Skip the same k-mer in the later parts
+				if (next[p] < sorted[p].length && (sorted[p][next[p]] & mask) == lowest) next[p]++;
+			}
+		}
+		return count;
+	}
+
+	public int getPartCount() {
+		return parts.length;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private Object writeReplace() {
+		return new FrozenKmerMap(mask, keys(), getFrequencies());
+	}
+}
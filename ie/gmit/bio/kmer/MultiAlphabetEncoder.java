@@ -0,0 +1,120 @@
+package ie.gmit.bio.kmer;
+
+/*
+ * MultiAlphabetEncoder
+ * --------------------
+ * Encodes a sequence under several amino acid alphabets in a single pass. The AminoAcidTable
+ * of each alphabet is merged into one combined table with a row of symbols per residue, so
+ * each residue is read once and rolled into the k-mer of every alphabet at the same time.
+ * The k-mers of each alphabet are written to a primitive buffer that is reused between
+ * sequences and are the same as those from KmerUtils.encode(), including the skipping of
+ * k-mers that span a residue outside the alphabet. The tables are copied when
+ * the encoder is created, so later changes to an alphabet are not picked up.
+ */
+public class MultiAlphabetEncoder {
+	private AminoAcidAlphabet[] alphabets;
+	private byte[] symbols; //[residue * alphabets.length + alphabet]
+	private int[] shifts;
+	private int[] blockSizes;
+	private long[] masks;
+	private long[] packed;
+	private int[] valid;
+	private int[] skipped;
+	private long[][] kmers;
+	private int[] counts;
+
+	public MultiAlphabetEncoder(AminoAcidAlphabet... alphabets) {
+		super();
+		this.alphabets = alphabets;
+		int n = alphabets.length;
+		symbols = new byte[128 * n];
+		shifts = new int[n];
+		blockSizes = new int[n];
+		masks = new long[n];
+		packed = new long[n];
+		valid = new int[n];
+		skipped = new int[n];
+		kmers = new long[n][64];
+		counts = new int[n];
+
+		for (int a = 0; a < n; a++) {
+			byte[] table = AminoAcidEncoder.getInstance().getTable(alphabets[a]).getTable();
+			for (int residue = 0; residue < table.length; residue++) {
+				symbols[residue * n + a] = table[residue];
+			}
+			shifts[a] = KmerUtils.getShift(alphabets[a]);
+			blockSizes[a] = KmerUtils.getBlockSize(alphabets[a]);
+			masks[a] = shifts[a] * blockSizes[a] == 64 ? -1L : (1L << (shifts[a] * blockSizes[a])) - 1;
+		}
+	}
+
+	//Encodes the ASCII residues in bytes[offset...offset + length - 1]
+	public void encode(byte[] residues, int offset, int length) {
+		int n = prepare(length);
+		for (int i = 0; i < length; i++) {
+			int c = residues[offset + i] & 0xFF;
+			roll(c < 128 ? c : 0, length, n); //Row 0 (NUL) is all INVALID
+		}
+		finish(length, n);
+	}
+
+	public void encode(CharSequence sequence) {
+		int length = sequence.length();
+		int n = prepare(length);
+		for (int i = 0; i < length; i++) {
+			char c = sequence.charAt(i);
+			roll(c < 128 ? c : 0, length, n); //Row 0 (NUL) is all INVALID
+		}
+		finish(length, n);
+	}
+
+	private int prepare(int length) {
+		int n = alphabets.length;
+		for (int a = 0; a < n; a++) {
+			if (kmers[a].length < length) kmers[a] = new long[Math.max(length, kmers[a].length << 1)];
+			counts[a] = 0;
+			packed[a] = 0;
+			valid[a] = 0;
+		}
+		return n;
+	}
+
+	//As KmerUtils.encode(), the k-mers skipped are those expected less those written
+	private void finish(int length, int n) {
+		for (int a = 0; a < n; a++) {
+			skipped[a] = KmerUtils.getKmerCount(length, alphabets[a]) - counts[a];
+		}
+	}
+
+	private void roll(int residue, int length, int n) {
+		int row = residue * n;
+		for (int a = 0; a < n; a++) {
+			int symbol = symbols[row + a];
+			if (symbol == AminoAcidTable.INVALID) {
+				valid[a] = 0;
+			}else {
+				packed[a] = ((packed[a] << shifts[a]) | symbol) & masks[a];
+				valid[a]++;
+				if (valid[a] >= Math.min(blockSizes[a], length)) kmers[a][counts[a]++] = packed[a];
+			}
+		}
+	}
+
+	public AminoAcidAlphabet[] getAlphabets() {
+		return alphabets;
+	}
+
+	//The k-mers of the alphabet at the given index. Only the first getKmerCount(index) are valid.
+	public long[] getKmers(int index) {
+		return kmers[index];
+	}
+
+	public int getKmerCount(int index) {
+		return counts[index];
+	}
+
+	//The number of k-mers of the last sequence that spanned a residue outside the alphabet
+	public int getSkippedKmerCount(int index) {
+		return skipped[index];
+	}
+}
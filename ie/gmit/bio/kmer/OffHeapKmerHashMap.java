@@ -0,0 +1,271 @@
+package ie.gmit.bio.kmer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * OffHeapKmerHashMap
+ * --------------------
+ * A KmerMap with the same open-addressing layout and lookup semantics as KmerHashMap, but
+ * with its key and frequency slots held outside the Java heap, so a large database adds
+ * nothing for the garbage collector to trace. The slots are either in a direct buffer or
+ * in a memory-mapped file, in which case the file is both the runtime structure and the
+ * persisted form and can be re-opened with open(). The file is a 32 byte header (magic,
+ * primary seed, capacity, size) followed by 16 byte (key, frequency) slots, all little
+ * endian. A single buffer is limited to 2GB, i.e. 2^26 (about 67 million) slots, or
+ * about 50 million k-mers at the load factor. If the map is serialised, it is written as
+ * a KmerHashMap copy. Call close() when finished with the map.
+ */
+public class OffHeapKmerHashMap implements KmerMap, Closeable, Serializable{
+	private static final long serialVersionUID = 777L;
+	private static final long MAGIC = 0x3150414D52454D4BL; //"KMERMAP1"
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 16;
+	private static final int MAX_CAPACITY = 1 << 26; //The largest power of two number of slots in a 2GB buffer
+	private static final float LOAD_FACTOR = 0.75f;
+	private transient FileChannel channel; //Null when the slots are not backed by a file
+	private transient ByteBuffer buffer;
+	private long mask;
+	private int capacity;
+	private int threshold;
+	private int size;
+
+	public OffHeapKmerHashMap(long[] seeds) {
+		this(16, seeds);
+	}
+
+	public OffHeapKmerHashMap(int capacity, long[] seeds) {
+		super();
+		this.mask = seeds.length > 0 ? seeds[0] : -1L;
+		allocate(tableSize(capacity));
+	}
+
+	private OffHeapKmerHashMap(FileChannel channel) {
+		super();
+		this.channel = channel;
+	}
+
+	//Creates a new map backed by the file, replacing anything already in it
+	public static OffHeapKmerHashMap create(String file, int capacity, long[] seeds) throws IOException {
+		OffHeapKmerHashMap map = new OffHeapKmerHashMap(FileChannel.open(Path.of(file),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE));
+		map.mask = seeds.length > 0 ? seeds[0] : -1L;
+		map.allocate(tableSize(capacity));
+		return map;
+	}
+
+	//Maps a file written by an earlier map in place, without reading the slots
+	public static OffHeapKmerHashMap open(String file) throws IOException {
+		FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		OffHeapKmerHashMap map = new OffHeapKmerHashMap(channel);
+		long length = channel.size();
+		if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+			map.close();
+			throw new IOException("Not a k-mer map file: " + file);
+		}
+		map.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+		if (map.buffer.getLong(0) != MAGIC) {
+			map.close();
+			throw new IOException("Not a k-mer map file: " + file);
+		}
+		map.mask = map.buffer.getLong(8);
+		map.capacity = map.buffer.getInt(16);
+		map.size = map.buffer.getInt(20);
+		map.threshold = (int) (map.capacity * LOAD_FACTOR);
+
+		//The header has to describe a table that fits in the file, or the slots would be read past its end
+		if (map.capacity < 2 || map.capacity > MAX_CAPACITY || Integer.bitCount(map.capacity) != 1
+				|| map.size < 0 || map.size >= map.capacity || HEADER_SIZE + (long) map.capacity * SLOT_SIZE > length) {
+			map.close();
+			throw new IOException("Corrupt k-mer map file header: " + file);
+		}
+		return map;
+	}
+
+	@Override
+	public long get(long key) {
+		int index = slotOf(key);
+		return frequency(index);
+	}
+
+	@Override
+	public void put(long key, long frequency) {
+		int index = slotOf(key);
+		if (frequency == 0) { //A zero frequency is an empty slot
+			if (frequency(index) != 0) remove(index);
+			return;
+		}
+
+		if (frequency(index) == 0) {
+			insert(index, key, frequency);
+		}else {
+			buffer.putLong(offset(index) + 8, frequency);
+		}
+	}
+
+	@Override
+	public long increment(long key) {
+		int index = slotOf(key);
+		long frequency = frequency(index) + 1;
+		if (frequency == 1) {
+			insert(index, key, 1);
+		}else {
+			buffer.putLong(offset(index) + 8, frequency);
+		}
+		return frequency;
+	}
+
+	@Override
+	public long[] keys() {
+		long[] keys = new long[size];
+		int index = 0;
+		for (int i = 0; i < capacity; i++) {
+			if (frequency(i) != 0) keys[index++] = key(i);
+		}
+		return keys;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private int slotOf(long key) {
+		long masked = key & mask;
+		int last = capacity - 1;
+		int index = KmerUtils.hash(masked) & last;
+		while (frequency(index) != 0 && (key(index) & mask) != masked) {
+			index = (index + 1) & last;
+		}
+		return index;
+	}
+
+	private void insert(int index, long key, long frequency) {
+		buffer.putLong(offset(index), key);
+		buffer.putLong(offset(index) + 8, frequency);
+		setSize(size + 1);
+		if (size > threshold) resize();
+	}
+
+	//Backward shift deletion, as in KmerHashMap
+	private void remove(int index) {
+		int last = capacity - 1;
+		int next = index;
+		setSize(size - 1);
+
+		while (true) {
+			next = (next + 1) & last;
+			if (frequency(next) == 0) break;
+
+			int home = KmerUtils.hash(key(next) & mask) & last;
+			if (((next - home) & last) >= ((next - index) & last)) {
+				buffer.putLong(offset(index), key(next));
+				buffer.putLong(offset(index) + 8, frequency(next));
+				index = next;
+			}
+		}
+		buffer.putLong(offset(index) + 8, 0);
+	}
+
+	private void resize() {
+		//A mapped file is rewritten in place, so the old slots are copied out first. The file may be longer than the table.
+		ByteBuffer old = buffer;
+		if (channel != null) {
+			int length = HEADER_SIZE + capacity * SLOT_SIZE;
+			old = ByteBuffer.allocateDirect(length).order(ByteOrder.LITTLE_ENDIAN);
+			old.put(buffer.duplicate().clear().limit(length));
+		}
+		int oldCapacity = capacity;
+		allocate(capacity << 1);
+
+		int last = capacity - 1;
+		for (int i = 0; i < oldCapacity; i++) {
+			long frequency = old.getLong(HEADER_SIZE + i * SLOT_SIZE + 8);
+			if (frequency == 0) continue;
+
+			long key = old.getLong(HEADER_SIZE + i * SLOT_SIZE);
+			int index = KmerUtils.hash(key & mask) & last;
+			while (frequency(index) != 0) index = (index + 1) & last;
+			buffer.putLong(offset(index), key);
+			buffer.putLong(offset(index) + 8, frequency);
+		}
+	}
+
+	private void allocate(int capacity) {
+		if (capacity > MAX_CAPACITY) throw new IllegalStateException("Off-heap k-mer map is limited to " + MAX_CAPACITY + " slots.");
+		long bytes = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+
+		try {
+			if (channel == null) {
+				buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+			}else {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+				for (long i = 0; i < bytes; i += 8) buffer.putLong((int) i, 0); //The file may hold an older, smaller table
+			}
+		}catch (IOException e) {
+			throw new IllegalStateException("Unable to map k-mer map file.", e);
+		}
+
+		this.capacity = capacity;
+		this.threshold = (int) (capacity * LOAD_FACTOR);
+		buffer.putLong(0, MAGIC);
+		buffer.putLong(8, mask);
+		buffer.putInt(16, capacity);
+		buffer.putInt(20, size);
+	}
+
+	private void setSize(int size) {
+		this.size = size;
+		buffer.putInt(20, size);
+	}
+
+	private static int tableSize(int capacity) {
+		if (capacity > MAX_CAPACITY * LOAD_FACTOR) {
+			throw new IllegalArgumentException("Off-heap k-mer map is limited to " + (int) (MAX_CAPACITY * LOAD_FACTOR) + " k-mers.");
+		}
+		int expected = (int) Math.ceil(Math.max(capacity, 2) / LOAD_FACTOR);
+		return Math.max(2, Integer.highestOneBit(expected - 1) << 1);
+	}
+
+	private int offset(int index) {
+		return HEADER_SIZE + index * SLOT_SIZE;
+	}
+
+	private long key(int index) {
+		return buffer.getLong(offset(index));
+	}
+
+	private long frequency(int index) {
+		return buffer.getLong(offset(index) + 8);
+	}
+
+	private Object writeReplace() { //The slots are outside the heap, so they are copied into one
+		KmerHashMap map = new KmerHashMap(size, new long[] {mask}, LOAD_FACTOR);
+		for (int i = 0; i < capacity; i++) {
+			if (frequency(i) != 0) map.put(key(i), frequency(i));
+		}
+		return map;
+	}
+
+	/*
+	 * Writes a mapped map back to its file and releases the buffer. The memory itself is
+	 * returned when the buffer is collected, as a ByteBuffer cannot be freed explicitly.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null && buffer != null) ((MappedByteBuffer) buffer).force();
+		buffer = null;
+		if (channel != null) channel.close();
+	}
+}
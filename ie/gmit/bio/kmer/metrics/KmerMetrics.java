@@ -6,7 +6,53 @@ import java.util.Comparator;
 import ie.gmit.bio.kmer.*;
 
 public interface KmerMetrics extends Serializable{
-	double getDistance(long[] seeds, KmerHashMap query, KmerHashMap subject);
+	double getDistance(long[] seeds, KmerMap query, KmerMap subject);
+	
+	//Metrics that can use the per-seed projected index of the subject should override this
+	default double getDistance(long[] seeds, KmerMap query, KmerSeedIndex subject) {
+		return getDistance(seeds, query, subject.getKmerMap());
+	}
+	
+	//Metrics that are a sum of per k-mer matches can score every family of a posting index at once
+	default boolean usesPostings() {
+		return false;
+	}
+	
+	//Metrics that score zero for a family with no matching k-mers can skip it with a prefilter
+	default boolean isZeroWithoutMatches() {
+		return false;
+	}
+	
+	default double[] getDistances(long[] seeds, KmerMap query, KmerPostingIndex index) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be computed from postings.");
+	}
+	
+	//As getDistance(), but from a reusable query context. Override to avoid allocating per query.
+	default double getDistance(long[] seeds, KmerQueryContext query, KmerSeedIndex subject) {
+		return getDistance(seeds, query.getQuery(), subject);
+	}
+	
+	default void getDistances(long[] seeds, KmerQueryContext query, KmerPostingIndex index, double[] scores) {
+		double[] distances = getDistances(seeds, query.getQuery(), index);
+		System.arraycopy(distances, 0, scores, 0, distances.length);
+	}
+	
+	/*
+	 * A bound on getDistance() that is cheaper to compute, i.e. a score that the subject
+	 * cannot rank ahead of under getResultComparator(). It is given the subject's
+	 * KmerSeedIndex.getMaxMatches(), which is kept after the index itself is evicted, so no
+	 * index is built to compute it. NaN if the metric has no bound, in which case every
+	 * family is scored.
+	 */
+	default double getBound(long[] seeds, KmerMap query, int maxMatches) {
+		return Double.NaN;
+	}
+	
 	Comparator<ClassifierResult> getResultComparator();
+	
+	//The result comparator on the bare metrics. Override to avoid allocating per comparison.
+	default int compare(double n, double m) {
+		return getResultComparator().compare(new ClassifierResult(null, n), new ClassifierResult(null, m));
+	}
 }
 
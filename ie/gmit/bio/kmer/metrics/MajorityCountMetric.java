@@ -1,38 +1,91 @@
 package ie.gmit.bio.kmer.metrics;
 
+import java.util.Arrays;
 import java.util.Comparator;
 
 import ie.gmit.bio.kmer.*;
 
+/*
+ * Counts the (query k-mer, subject k-mer, seed) triples that are equal under the seed. 
+ * Rather than scanning the subject for every query k-mer, each query k-mer is looked up
+ * once per seed in the subject's KmerSeedIndex, which already holds the number of subject
+ * k-mers with the same seed projection. The result is identical to NaiveMajorityCountMetric.
+ * With a KmerPostingIndex, all of the families are scored in the same pass.
+ */
 public class MajorityCountMetric implements KmerMetrics{
 	private static final long serialVersionUID = 777L;
 
+	/*
+	 * Without the database's index of the subject, the query is indexed instead. It is
+	 * usually far smaller, and the count is symmetric, so the subject is scanned once.
+	 */
 	@Override
-	public double getDistance(long[] seeds, KmerHashMap query, KmerHashMap subject) {
+	public double getDistance(long[] seeds, KmerMap query, KmerMap subject) {
+		KmerSeedIndex index = new KmerSeedIndex(seeds, query);
 		double totalMatches = 0;
-		//Get the top n query k-mers in descending order
-		KmerFrequency[] qf = query.getSortedKmerFrequencies(query.size());
-		KmerFrequency[] sf = subject.getSortedKmerFrequencies(subject.size());
-		for (int i = 0; i < qf.length; i++) { //Iterate over them
-			totalMatches += getKmerMatchCount(seeds, qf[i].key(), sf);
+		for (long kmer : subject.keys()) {
+			totalMatches += index.getMatches(kmer);
 		}
 		return totalMatches;
 	}
 
-	private int getKmerMatchCount(long[] seeds, long query, KmerFrequency[] kmers) {
-		int matches = 0;
-		for (int rank = 0; rank < kmers.length; rank++) {
-			for (long seed : seeds) {
-				long q = query & seed;
-				long s = kmers[rank].key() & seed;
-				if (s == q) matches++;
-			}
+	@Override
+	public double getDistance(long[] seeds, KmerMap query, KmerSeedIndex subject) {
+		double totalMatches = 0;
+		long[] kmers = query.keys();
+		for (int i = 0; i < kmers.length; i++) {
+			totalMatches += subject.getMatches(kmers[i]);
+		}
+		return totalMatches;
+	}
+	
+	@Override
+	public double getDistance(long[] seeds, KmerQueryContext query, KmerSeedIndex subject) {
+		double totalMatches = 0;
+		long[] kmers = query.getKmers();
+		for (int i = 0; i < query.getKmerCount(); i++) {
+			totalMatches += subject.getMatches(kmers[i]);
+		}
+		return totalMatches;
+	}
+	
+	@Override
+	public boolean usesPostings() {
+		return true;
+	}
+	
+	@Override
+	public double[] getDistances(long[] seeds, KmerMap query, KmerPostingIndex index) {
+		return index.getScores(query.keys());
+	}
+	
+	@Override
+	public void getDistances(long[] seeds, KmerQueryContext query, KmerPostingIndex index, double[] scores) {
+		Arrays.fill(scores, 0);
+		long[] kmers = query.getKmers();
+		for (int i = 0; i < query.getKmerCount(); i++) {
+			index.accumulate(kmers[i], scores);
 		}
-		return matches;
+	}
+	
+	//Each distinct query k-mer matches at most getMaxMatches() (subject k-mer, seed) pairs
+	@Override
+	public double getBound(long[] seeds, KmerMap query, int maxMatches) {
+		return (double) query.size() * maxMatches;
+	}
+	
+	@Override
+	public boolean isZeroWithoutMatches() {
+		return true;
 	}
 	
 	@Override
 	public Comparator<ClassifierResult> getResultComparator() {
 		return (n, m) -> -Double.compare(n.metric(), m.metric());
 	}
+	
+	@Override
+	public int compare(double n, double m) {
+		return -Double.compare(n, m);
+	}
 }
\ No newline at end of file
@@ -13,35 +13,48 @@ public class OutOfPlaceMetric implements KmerMetrics{
 		this.top = top;
 	}
 
+	public int getTop() {
+		return top;
+	}
+
 	@Override
-	public double getDistance(long[] seeds, KmerHashMap query, KmerHashMap subject) {
+	public double getDistance(long[] seeds, KmerMap query, KmerMap subject) {
+		KmerProfile profile = new KmerProfile(subject, top);
+		return getDistance(new KmerProfile(query, top), new KmerRankIndex(seeds, profile), profile.size(), subject.size());
+	}
+
+	//The subject is already ranked and indexed in its seed index, so only the top of the query is selected
+	@Override
+	public double getDistance(long[] seeds, KmerMap query, KmerSeedIndex subject) {
+		int length = Math.min(top, subject.getProfile().size());
+		return getDistance(new KmerProfile(query, top), subject.getRankIndex(), length, subject.size());
+	}
+
+	/*
+	 * The rank of a query k-mer in the top length subject k-mers is the first rank that matches
+	 * it under any seed, or length + 1 if none do. The rank index gives the first match in the
+	 * whole subject profile, which is the same thing when it is within the top length.
+	 */
+	private double getDistance(KmerProfile query, KmerRankIndex subject, int length, int subjectSize) {
 		double distance = 0;
 
-		//Get the top n query k-mers in descending order
-		KmerFrequency[] qf = query.getSortedKmerFrequencies(top);
-		KmerFrequency[] sf = subject.getSortedKmerFrequencies(top);
-		for (int rank = 0; rank < qf.length; rank++) { //Iterate over them
-			distance += getKmerIndex(seeds, qf[rank].key(), sf) - rank;
+		//Iterate over the top n query k-mers in descending order
+		for (int rank = 0; rank < query.size(); rank++) {
+			int index = subject.getRank(query.getKmer(rank));
+			distance += (index < length ? index : length + 1) - rank;
 		}
 		
 		//NB: scale the distance in proportion to the size of the subject db
-		return (distance / Double.valueOf(subject.size()));
-	}
-
-	private int getKmerIndex(long[] seeds, long query, KmerFrequency[] kmers) {
-		for (int rank = 0; rank < kmers.length; rank++) {
-			for (long seed : seeds) {
-				long q = query & seed;
-				long s = kmers[rank].key() & seed;
-				
-				if (s == q) return rank;
-			}
-		}
-		return kmers.length + 1;
+		return (distance / Double.valueOf(subjectSize));
 	}
 
 	@Override
 	public Comparator<ClassifierResult> getResultComparator() {
 		return (n, m) -> Double.compare(Math.abs(n.metric()), Math.abs(m.metric()));
 	}
+	
+	@Override
+	public int compare(double n, double m) {
+		return Double.compare(Math.abs(n), Math.abs(m));
+	}
 }
\ No newline at end of file
@@ -98,11 +98,10 @@ public class SimulatedAnnealingCrossValidation {
 			
 			long[] kmers = KmerUtils.encode(s.getSequence(), alphabet);
 			for (long kmer : kmers) {
-				long frequency = qMap.get(kmer) + 1; 
-				qMap.put(kmer, frequency);
+				qMap.increment(kmer);
 			}
 			
-			ClassifierResult[] results = db.classify(qMap);
+			ClassifierResult[] results = db.classify(qMap, 1); //Only the best result is used
 			if (results.length > 0) {
 				matrix.update(results[0].amp().name(), s.getName());
 			}else {
@@ -137,8 +136,7 @@ public class SimulatedAnnealingCrossValidation {
 			}else { 
 				long[] kmers = KmerUtils.encode(s.getSequence(), alphabet);
 				for (long kmer : kmers) {
-					long frequency = map.get(kmer) + 1; 
-					map.put(kmer, frequency);
+					map.increment(kmer);
 				}
 			}
 		}
@@ -108,11 +108,10 @@ public class KmerCrossValidation {
 			
 			long[] kmers = KmerUtils.encode(s.getSequence(), alphabet);
 			for (long kmer : kmers) {
-				long frequency = qMap.get(kmer) + 1; 
-				qMap.put(kmer, frequency);
+				qMap.increment(kmer);
 			}
 			
-			ClassifierResult[] results = db.classify(qMap);
+			ClassifierResult[] results = db.classify(qMap, 1); //Only the best result is used
 			if (results.length > 0) {
 				matrix.update(results[0].amp().name(), s.getName());
 			}else {
@@ -147,8 +146,7 @@ public class KmerCrossValidation {
 			}else { 
 				long[] kmers = KmerUtils.encode(s.getSequence(), alphabet);
 				for (long kmer : kmers) {
-					long frequency = map.get(kmer) + 1; 
-					map.put(kmer, frequency);
+					map.increment(kmer);
 				}
 			}
 		}
@@ -0,0 +1,84 @@
+package ie.gmit.bio.kmer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ie.gmit.bio.AntimicrobialPeptide;
+import ie.gmit.bio.kmer.metrics.*;
+
+/*
+ * Checks that once a KmerQueryContext has grown to the longest query and the JIT has
+ * warmed up, loading a query and classifying it into a sink allocates nothing with the
+ * default metric, both from the posting index and family by family from the seed indexes.
+ * The bytes are counted per thread, so nothing the JVM allocates elsewhere is included.
+ */
+public class KmerQueryContextTest {
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+	private static final int WARM_UP = 20_000;
+	private static final int CALLS = 10_000;
+	private static double total;
+
+	//Scores each family from its seed index instead of from the postings
+	private static class SeedIndexMetric extends MajorityCountMetric {
+		private static final long serialVersionUID = 777L;
+
+		@Override
+		public boolean usesPostings() {
+			return false;
+		}
+	}
+
+	@Test
+	public void classifiesWithoutAllocating() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported(), "Per-thread allocation counts are not supported");
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		AminoAcidAlphabet alphabet = AminoAcidAlphabet.Murphy10;
+		long[] seeds = KmerUtils.getEncodedSeeds(alphabet);
+		for (KmerMetrics metrics : new KmerMetrics[] { new MajorityCountMetric(), new SeedIndexMetric() }) {
+			Random random = new Random(21);
+			KmerDatabase db = new KmerDatabase(seeds, metrics);
+			for (AntimicrobialPeptide amp : new AntimicrobialPeptide[] { AntimicrobialPeptide.Histone,
+					AntimicrobialPeptide.Cystatin, AntimicrobialPeptide.Lectin, AntimicrobialPeptide.BetaDefensin }) {
+				KmerHashMap map = new KmerHashMap(seeds);
+				for (int i = 0; i < 20; i++) {
+					for (long kmer : KmerUtils.encode(getSequence(random), alphabet)) map.increment(kmer);
+				}
+				db.add(amp, map.freeze());
+			}
+
+			String[] queries = new String[64];
+			for (int i = 0; i < queries.length; i++) queries[i] = getSequence(random);
+			KmerQueryContext context = new KmerQueryContext(seeds, alphabet);
+			ClassifierResultSink sink = (amp, score) -> total += score;
+
+			for (int i = 0; i < WARM_UP; i++) classify(db, context, queries[i % queries.length], sink);
+			long thread = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < CALLS; i++) classify(db, context, queries[i % queries.length], sink);
+			long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+			//Less than a byte per call, which leaves room for the counter itself but not for an object per query
+			assertTrue(allocated < CALLS, metrics.getClass().getSimpleName() + " allocated " + allocated + " bytes in " + CALLS + " calls");
+		}
+	}
+
+	private static void classify(KmerDatabase db, KmerQueryContext context, String query, ClassifierResultSink sink) {
+		context.load(query);
+		db.classify(context, sink);
+	}
+
+	private static String getSequence(Random random) {
+		StringBuilder sequence = new StringBuilder();
+		for (int i = 0, length = 20 + random.nextInt(60); i < length; i++) {
+			sequence.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+		}
+		return sequence.toString();
+	}
+}
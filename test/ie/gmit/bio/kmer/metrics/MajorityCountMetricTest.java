@@ -0,0 +1,73 @@
+package ie.gmit.bio.kmer.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ie.gmit.bio.AntimicrobialPeptide;
+import ie.gmit.bio.kmer.*;
+
+/*
+ * Differential test of MajorityCountMetric against the O(|Q|.|S|.seeds) scan of
+ * NaiveMajorityCountMetric, through each way that it can be scored, on random peptides
+ * under alphabets with few and with many match bits per seed.
+ */
+public class MajorityCountMetricTest {
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+	private static final AminoAcidAlphabet[] ALPHABETS = { AminoAcidAlphabet.Wang2, AminoAcidAlphabet.Murphy4,
+			AminoAcidAlphabet.Murphy10, AminoAcidAlphabet.Murphy15 };
+
+	@Test
+	public void matchesNaiveScan() {
+		Random random = new Random(11);
+		for (AminoAcidAlphabet alphabet : ALPHABETS) {
+			long[] seeds = KmerUtils.getEncodedSeeds(alphabet);
+			KmerHashMap subject = getMap(alphabet, seeds, random, 20);
+			for (int q = 0; q < 10; q++) {
+				KmerHashMap query = getMap(alphabet, seeds, random, 1);
+				double expected = new NaiveMajorityCountMetric().getDistance(seeds, query, subject);
+				MajorityCountMetric metric = new MajorityCountMetric();
+				assertEquals(expected, metric.getDistance(seeds, query, subject), alphabet.name());
+				assertEquals(expected, metric.getDistance(seeds, query, new KmerSeedIndex(seeds, subject)), alphabet.name());
+				assertEquals(expected, metric.getDistance(seeds, query, new KmerSeedIndex(seeds, subject.freeze())), alphabet.name());
+			}
+		}
+	}
+
+	@Test
+	public void classifiesAsNaiveScan() {
+		Random random = new Random(12);
+		for (AminoAcidAlphabet alphabet : ALPHABETS) {
+			long[] seeds = KmerUtils.getEncodedSeeds(alphabet);
+			KmerDatabase db = new KmerDatabase(seeds, new MajorityCountMetric());
+			KmerDatabase naive = new KmerDatabase(seeds, new NaiveMajorityCountMetric());
+			for (AntimicrobialPeptide amp : new AntimicrobialPeptide[] { AntimicrobialPeptide.Histone,
+					AntimicrobialPeptide.Cystatin, AntimicrobialPeptide.Lectin }) {
+				KmerHashMap map = getMap(alphabet, seeds, random, 10);
+				db.add(amp, map);
+				naive.add(amp, map);
+			}
+
+			for (int q = 0; q < 10; q++) {
+				KmerHashMap query = getMap(alphabet, seeds, random, 1);
+				ClassifierResult[] expected = naive.classify(query);
+				assertArrayEquals(expected, db.classify(query), alphabet.name());
+				assertArrayEquals(expected, db.classify(query, expected.length + 1), alphabet.name());
+			}
+		}
+	}
+
+	private static KmerHashMap getMap(AminoAcidAlphabet alphabet, long[] seeds, Random random, int sequences) {
+		KmerHashMap map = new KmerHashMap(seeds);
+		for (int i = 0; i < sequences; i++) {
+			StringBuilder sequence = new StringBuilder();
+			for (int j = 0, length = 20 + random.nextInt(60); j < length; j++) {
+				sequence.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+			}
+			for (long kmer : KmerUtils.encode(sequence, alphabet)) map.increment(kmer);
+		}
+		return map;
+	}
+}